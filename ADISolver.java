@@ -0,0 +1,239 @@
+package heatsinkDesign;
+
+// This class finds the equilibrium heat with an alternating-direction implicit (ADI) method.
+// Each sweep solves a tridiagonal system along every line in x, then y, then z (Thomas algorithm).
+// The line solves are implicit, so the pseudo time step isn't limited by stability,
+//    and far fewer sweeps are needed than explicit steps.
+// The conductances are the cycle-averaged conductances of the explicit simulation.
+// The explicit simulation updates air and boundary cells in large, infrequent steps, which
+//    shifts its equilibrium, so scores from the two solvers are close but not interchangeable.
+
+public class ADISolver {
+	static private final int numTimeSteps = 12;		// Number of pseudo time steps cycled through
+	static private final double maxTimeStepRatio = 3000; // Limit on the ratio of largest to smallest time step
+	static private final int maxSweeps = 4000;
+	static int lastSweeps = 0;						// Number of sweeps the last solve took
+	
+	// Solve for the equilibrium of the given design, starting from the given heat.
+	// Returns the score once it changes by less than maxError over a full cycle of time steps.
+	static double solve(final byte[] cells, final float[] heat, double maxError) {
+		final int[] size = {HeatsinkMain.cellsX, HeatsinkMain.cellsY, HeatsinkMain.cellsZ};
+		final int maxSize = Math.max(size[0], Math.max(size[1], size[2]));
+		final float[] correction = new float[HeatsinkMain.numCells];
+		final double[] timeSteps = getTimeSteps();
+		
+		double previousScore = -999;
+		int convergedCycles = 0;
+		for (int sweep = 0; sweep < maxSweeps; sweep++) {
+			final double timeStep = timeSteps[sweep % numTimeSteps];
+			
+			// The right-hand side is the explicit residual, scaled by the time step
+			runInParallel(new LineTask() {
+				public void run(int threadNum) {
+					for (int x = threadNum; x < HeatsinkMain.cellsX; x += HeatsinkMain.numThreads) {
+						computeResidual(cells, heat, correction, x, timeStep);
+					}
+				}
+			});
+			
+			// Then solve along each axis in turn, updating the correction in place.
+			// Lines are numbered by the two other coordinates, in order.
+			for (int tempAxis = 0; tempAxis < 3; tempAxis++) {
+				final int axis = tempAxis; // Fix bogus compile error
+				final int sizeA = axis == 0 ? size[1] : size[0];
+				final int sizeB = axis == 2 ? size[1] : size[2];
+				runInParallel(new LineTask() {
+					public void run(int threadNum) {
+						final double[] lower = new double[maxSize];
+						final double[] diagonal = new double[maxSize];
+						final double[] upper = new double[maxSize];
+						final double[] values = new double[maxSize];
+						for (int line = threadNum; line < sizeA * sizeB; line += HeatsinkMain.numThreads) {
+							solveLine(cells, correction, axis, size[axis], line / sizeB, line % sizeB, timeStep,
+									lower, diagonal, upper, values);
+						}
+					}
+				});
+			}
+			
+			for (int i = 0; i < HeatsinkMain.numCells; i++) {
+				heat[i] += correction[i];
+			}
+			
+			// Check for convergence after every full cycle of time steps.
+			// Two cycles in a row must agree, since the score can briefly level off mid-transient.
+			if (sweep % numTimeSteps == numTimeSteps - 1) {
+				final double score = HeatsinkMain.scoreHeatsink(heat);
+				convergedCycles = Math.abs(score - previousScore) / score < maxError ? convergedCycles + 1 : 0;
+				if (convergedCycles >= 2) {
+					lastSweeps = sweep + 1;
+					return score;
+				}
+				previousScore = score;
+			}
+		}
+		
+		System.err.println("WARNING: ADI solver did not converge");
+		lastSweeps = maxSweeps;
+		return HeatsinkMain.scoreHeatsink(heat);
+	}
+	
+	// Pseudo time steps spaced geometrically between the stiffest and the slowest modes,
+	//   so that every part of the error spectrum is damped within one cycle.
+	// The x, y and z operators don't commute where metal meets air, so very large steps can
+	//   make the cycle unstable (it oscillated and diverged at 48 cells wide).  The ratio is
+	//   capped, which costs a few more cycles for the slowest modes.
+	private static double[] getTimeSteps() {
+		final int n = Math.max(HeatsinkMain.cellsX, Math.max(HeatsinkMain.cellsY, HeatsinkMain.cellsZ));
+		final double maxEigenvalue = 4 * HeatsinkMain.getConductance((byte)1, (byte)1);
+		final double minEigenvalue = Math.max(maxEigenvalue / maxTimeStepRatio,
+				HeatsinkMain.getConductance((byte)1, (byte)0) * Math.PI * Math.PI / (n * n));
+		
+		final double[] timeSteps = new double[numTimeSteps];
+		for (int i = 0; i < numTimeSteps; i++) {
+			timeSteps[i] = Math.pow(maxEigenvalue / minEigenvalue, i / (numTimeSteps - 1.0)) / maxEigenvalue;
+		}
+		return timeSteps;
+	}
+	
+	// Compute timeStep * (heat source + net heat flow) for every cell in this x slab
+	private static void computeResidual(byte[] cells, float[] heat, float[] residual, int x, double timeStep) {
+		for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+			for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+				final int idx = HeatsinkMain.idx(x, y, z);
+				final byte cell = cells[idx];
+				final float cellHeat = heat[idx];
+				
+				double flow = HeatsinkMain.isHeatSourceCell(x, y, z) ? HeatsinkMain.heatSourceHeatPerCell : 0;
+				final float border = HeatsinkMain.getBorderConductance(x, y, z);
+				
+				if (x > 0) {
+					final int idx2 = HeatsinkMain.idx(x-1, y, z);
+					flow += HeatsinkMain.getConductance(cell, cells[idx2]) * (heat[idx2] - cellHeat);
+				} else {
+					flow -= border * cellHeat;
+				}
+				if (x < HeatsinkMain.cellsX-1) {
+					final int idx2 = HeatsinkMain.idx(x+1, y, z);
+					flow += HeatsinkMain.getConductance(cell, cells[idx2]) * (heat[idx2] - cellHeat);
+				} else {
+					flow -= border * cellHeat;
+				}
+				if (y > 0) {
+					final int idx2 = HeatsinkMain.idx(x, y-1, z);
+					flow += HeatsinkMain.getConductance(cell, cells[idx2]) * (heat[idx2] - cellHeat);
+				} else {
+					flow -= border * cellHeat;
+				}
+				if (y < HeatsinkMain.cellsY-1) {
+					final int idx2 = HeatsinkMain.idx(x, y+1, z);
+					flow += HeatsinkMain.getConductance(cell, cells[idx2]) * (heat[idx2] - cellHeat);
+				} else {
+					flow -= border * cellHeat;
+				}
+				if (z > 0) {
+					final int idx2 = HeatsinkMain.idx(x, y, z-1);
+					flow += HeatsinkMain.getConductance(cell, cells[idx2]) * (heat[idx2] - cellHeat);
+				} else {
+					flow -= border * cellHeat;
+				}
+				if (z < HeatsinkMain.cellsZ-1) {
+					final int idx2 = HeatsinkMain.idx(x, y, z+1);
+					flow += HeatsinkMain.getConductance(cell, cells[idx2]) * (heat[idx2] - cellHeat);
+				} else {
+					flow -= border * cellHeat;
+				}
+				
+				residual[idx] = (float)(timeStep * flow);
+			}
+		}
+	}
+	
+	// Solve (I + timeStep * A) * result = values along one line of n cells, where A holds only the
+	//   conductances along the given axis.  The two other coordinates select the line.
+	private static void solveLine(byte[] cells, float[] values, int axis, int n, int a, int b, double timeStep,
+			double[] lower, double[] diagonal, double[] upper, double[] line) {
+		
+		// Build the tridiagonal system from the materials along this line
+		for (int i = 0; i < n; i++) {
+			final int x = axis == 0 ? i : a;
+			final int y = axis == 1 ? i : (axis == 0 ? a : b);
+			final int z = axis == 2 ? i : b;
+			final int idx = HeatsinkMain.idx(x, y, z);
+			
+			diagonal[i] = 1;
+			lower[i] = 0;
+			upper[i] = 0;
+			if (i > 0) {
+				final int idx2 = getLineIndex(axis, a, b, i-1);
+				final double g = timeStep * HeatsinkMain.getConductance(cells[idx], cells[idx2]);
+				lower[i] = -g;
+				diagonal[i] += g;
+			} else {
+				diagonal[i] += timeStep * HeatsinkMain.getBorderConductance(x, y, z);
+			}
+			if (i < n-1) {
+				final int idx2 = getLineIndex(axis, a, b, i+1);
+				final double g = timeStep * HeatsinkMain.getConductance(cells[idx], cells[idx2]);
+				upper[i] = -g;
+				diagonal[i] += g;
+			} else {
+				diagonal[i] += timeStep * HeatsinkMain.getBorderConductance(x, y, z);
+			}
+			line[i] = values[idx];
+		}
+		
+		// Thomas algorithm: forward elimination, then back substitution
+		upper[0] /= diagonal[0];
+		line[0] /= diagonal[0];
+		for (int i = 1; i < n; i++) {
+			final double m = diagonal[i] - lower[i] * upper[i-1];
+			upper[i] /= m;
+			line[i] = (line[i] - lower[i] * line[i-1]) / m;
+		}
+		for (int i = n-2; i >= 0; i--) {
+			line[i] -= upper[i] * line[i+1];
+		}
+		
+		for (int i = 0; i < n; i++) {
+			values[getLineIndex(axis, a, b, i)] = (float)line[i];
+		}
+	}
+	
+	// Index of the i'th cell along a line in the given axis
+	private static int getLineIndex(int axis, int a, int b, int i) {
+		if (axis == 0) {
+			return HeatsinkMain.idx(i, a, b);
+		} else if (axis == 1) {
+			return HeatsinkMain.idx(a, i, b);
+		}
+		return HeatsinkMain.idx(a, b, i);
+	}
+	
+	// Work done by one thread (threads split the lines or slabs by their number)
+	interface LineTask {
+		void run(int threadNum);
+	}
+	
+	// Run the task on all threads and wait for them to finish
+	static void runInParallel(final LineTask task) {
+		final Thread[] threads = new Thread[HeatsinkMain.numThreads];
+		for (int tempThreadNum = 0; tempThreadNum < threads.length; tempThreadNum++) {
+			final int threadNum = tempThreadNum; // Fix bogus compile error
+			threads[threadNum] = new Thread(new Runnable() {
+				public void run() {
+					task.run(threadNum);
+				}
+			});
+			threads[threadNum].start();
+		}
+		
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+}
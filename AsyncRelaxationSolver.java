@@ -0,0 +1,212 @@
+package heatsinkDesign;
+
+// This class finds the equilibrium heat with asynchronous (chaotic) relaxation.
+// Each thread owns a slab of x layers and repeatedly relaxes its cells in place, reading
+//    whatever values its neighbors' slabs hold at the time, without locks or barriers.
+// Fast slabs (mostly air) don't wait for slow ones, so no thread sits idle.
+// The convergence check runs on the calling thread every few sweeps of the slowest slab.
+// It solves the same cycle-averaged system as ADISolver, so both reach the same equilibrium.
+// Chaotic relaxation is only guaranteed to converge without over-relaxation, and over-relaxing
+//    with stale values from a much slower slab can diverge.  But without it the score stalls about
+//    1e-5 short of the equilibrium.  So it is over-relaxed, and if the changes in the score grow on
+//    several checks in a row the solve starts again from the same heat with Gauss-Seidel.
+
+public class AsyncRelaxationSolver {
+	static private final float overRelaxationFactor = 1.6f;	// Relaxation factor unless the solve diverges
+	static private final int maxGrowingChecks = 5;		// Checks in a row with a growing change that count as diverging
+	static private final int gaussSeidelConvergedChecks = 5;	// Converged checks in a row needed without over-relaxation
+	static private final int sweepsPerCheck = 10;		// Sweeps of the slowest slab between convergence checks
+	static private final int maxSweeps = 200000;
+	static int lastSweeps = 0;							// Sweeps done by the slowest slab in the last solve
+	
+	// Solve for the equilibrium of the given design, starting from the given heat.
+	// Returns the score once the estimated remaining change is less than maxError on two checks in a row.
+	static double solve(final byte[] cells, final float[] heat, double maxError) {
+		final float[] startHeat = heat.clone();
+		final double score = relax(cells, heat, maxError, overRelaxationFactor);
+		if (!Double.isNaN(score)) {
+			return score;
+		}
+		System.err.println("WARNING: Asynchronous over-relaxation diverged, solving again with Gauss-Seidel");
+		final int divergedSweeps = lastSweeps;
+		System.arraycopy(startHeat, 0, heat, 0, heat.length);
+		final double gaussSeidelScore = relax(cells, heat, maxError, 1);
+		lastSweeps += divergedSweeps;
+		return gaussSeidelScore;
+	}
+	
+	// Relax with the given factor until converged, or return NaN if an over-relaxed solve diverges
+	private static double relax(final byte[] cells, final float[] heat, double maxError, final float relaxationFactor) {
+		final int n = HeatsinkMain.cellsX;
+		final int numThreads = HeatsinkMain.numThreads;
+		final int[] sweeps = new int[numThreads];
+		final boolean[] shouldStop = {false};
+		
+		// Without over-relaxation the ratio is close to 1, where a noisy check can pass two in a row
+		final int requiredConvergedChecks = relaxationFactor > 1 ? 2 : gaussSeidelConvergedChecks;
+		
+		// Each thread gets a contiguous slab, so only the two faces of a slab are shared
+		final Thread[] threads = new Thread[numThreads];
+		for (int tempThreadNum = 0; tempThreadNum < numThreads; tempThreadNum++) {
+			final int threadNum = tempThreadNum; // Fix bogus compile error
+			final int startX = n * threadNum / numThreads;
+			final int endX = n * (threadNum + 1) / numThreads;
+			threads[threadNum] = new Thread(new Runnable() {
+				public void run() {
+					while (!isStopped(shouldStop)) {
+						for (int x = startX; x < endX; x++) {
+							relaxSlab(cells, heat, x, relaxationFactor);
+						}
+						synchronized (sweeps) {
+							sweeps[threadNum]++;
+						}
+					}
+				}
+			});
+			threads[threadNum].start();
+		}
+		
+		double previousScore = -999;
+		double previousChange = 0;
+		int convergedChecks = 0;
+		int growingChecks = 0;
+		boolean diverged = false;
+		int nextCheck = sweepsPerCheck;
+		while (true) {
+			final int slowestSweeps = getSlowestSweeps(sweeps);
+			if (slowestSweeps < nextCheck) {
+				Thread.yield();
+				continue;
+			}
+			nextCheck = slowestSweeps + sweepsPerCheck;
+			
+			// The other threads keep writing while the score is read, which only adds a little noise
+			final double score = HeatsinkMain.scoreHeatsink(heat);
+			final double change = score - previousScore;
+			
+			// Over-relaxation diverges if the changes keep growing
+			growingChecks = Math.abs(change) > Math.abs(previousChange) ? growingChecks + 1 : 0;
+			if (relaxationFactor > 1 && (growingChecks >= maxGrowingChecks || Double.isNaN(score) || Double.isInfinite(score))) {
+				diverged = true;
+				lastSweeps = slowestSweeps;
+				break;
+			}
+			
+			// The slowest mode (the metal warming as a whole) dominates near the end, so the score
+			//   converges geometrically, and the remaining change is about change * ratio / (1 - ratio)
+			final double ratio = change / previousChange;
+			if (ratio > 0 && ratio < 1 && Math.abs(change * ratio / (1 - ratio) / score) < maxError) {
+				convergedChecks++;
+			} else {
+				convergedChecks = 0;
+			}
+			previousScore = score;
+			previousChange = change;
+			if (convergedChecks >= requiredConvergedChecks) {
+				lastSweeps = slowestSweeps;
+				break;
+			}
+			if (slowestSweeps >= maxSweeps) {
+				System.err.println("WARNING: Asynchronous solver did not converge");
+				lastSweeps = slowestSweeps;
+				break;
+			}
+		}
+		
+		synchronized (shouldStop) {
+			shouldStop[0] = true;
+		}
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		
+		// Score again now that the heat has stopped changing
+		return diverged ? Double.NaN : HeatsinkMain.scoreHeatsink(heat);
+	}
+	
+	private static boolean isStopped(boolean[] shouldStop) {
+		synchronized (shouldStop) {
+			return shouldStop[0];
+		}
+	}
+	
+	private static int getSlowestSweeps(int[] sweeps) {
+		synchronized (sweeps) {
+			int slowest = Integer.MAX_VALUE;
+			for (int count : sweeps) {
+				slowest = Math.min(slowest, count);
+			}
+			return slowest;
+		}
+	}
+	
+	// Move every cell in this x layer towards the balance of its neighbors, in place
+	private static void relaxSlab(byte[] cells, float[] heat, int x, float relaxationFactor) {
+		for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+			for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+				final int idx = HeatsinkMain.idx(x, y, z);
+				final byte cell = cells[idx];
+				
+				double flow = HeatsinkMain.isHeatSourceCell(x, y, z) ? HeatsinkMain.heatSourceHeatPerCell : 0;
+				double totalConductance = 0;
+				final float border = HeatsinkMain.getBorderConductance(x, y, z);
+				
+				if (x > 0) {
+					final int idx2 = HeatsinkMain.idx(x-1, y, z);
+					final float g = HeatsinkMain.getConductance(cell, cells[idx2]);
+					flow += g * heat[idx2];
+					totalConductance += g;
+				} else {
+					totalConductance += border;
+				}
+				if (x < HeatsinkMain.cellsX-1) {
+					final int idx2 = HeatsinkMain.idx(x+1, y, z);
+					final float g = HeatsinkMain.getConductance(cell, cells[idx2]);
+					flow += g * heat[idx2];
+					totalConductance += g;
+				} else {
+					totalConductance += border;
+				}
+				if (y > 0) {
+					final int idx2 = HeatsinkMain.idx(x, y-1, z);
+					final float g = HeatsinkMain.getConductance(cell, cells[idx2]);
+					flow += g * heat[idx2];
+					totalConductance += g;
+				} else {
+					totalConductance += border;
+				}
+				if (y < HeatsinkMain.cellsY-1) {
+					final int idx2 = HeatsinkMain.idx(x, y+1, z);
+					final float g = HeatsinkMain.getConductance(cell, cells[idx2]);
+					flow += g * heat[idx2];
+					totalConductance += g;
+				} else {
+					totalConductance += border;
+				}
+				if (z > 0) {
+					final int idx2 = HeatsinkMain.idx(x, y, z-1);
+					final float g = HeatsinkMain.getConductance(cell, cells[idx2]);
+					flow += g * heat[idx2];
+					totalConductance += g;
+				} else {
+					totalConductance += border;
+				}
+				if (z < HeatsinkMain.cellsZ-1) {
+					final int idx2 = HeatsinkMain.idx(x, y, z+1);
+					final float g = HeatsinkMain.getConductance(cell, cells[idx2]);
+					flow += g * heat[idx2];
+					totalConductance += g;
+				} else {
+					totalConductance += border;
+				}
+				
+				final float balancedHeat = (float)(flow / totalConductance);
+				heat[idx] += relaxationFactor * (balancedHeat - heat[idx]);
+			}
+		}
+	}
+}
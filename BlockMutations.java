@@ -0,0 +1,248 @@
+package heatsinkDesign;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+// This class mutates whole blocks of cells at once, keeping the volume constant.
+// A transfer thins the heat sink by a blob of metal in one place and thickens it by a blob of the
+//    same size somewhere else.  A shift moves a segment of a fin (the metal connected to a cell
+//    within a box around it) by up to its own size.
+// The size of the blocks adapts to the acceptance of the candidates: it grows after each accepted
+//    candidate and shrinks after each rejected one, and holds steady when targetAcceptance of them
+//    are accepted.  Large moves are made while they are accepted often, and once the size shrinks to
+//    a single cell, the usual single cell mutations are made instead.
+// The blocks are chosen within the part of the design that is reflected to the rest (x < cellsX/2,
+//    z < x), like the cells of the single cell mutations.
+
+public class BlockMutations {
+	static private final double maxScale = Math.max(2, (HeatsinkMain.cellsX - HeatsinkMain.airPadding*2) / 8.0);
+	static private final double scaleGrowth = 1.2;		// Scale multiplier after an accepted candidate
+	static private final double targetAcceptance = 0.2;	// Acceptance rate that keeps the scale steady
+	static private final int maxAttempts = 20;			// Blocks tried before giving up on a mutation
+	static private final int maxSeedTries = 200;			// Random cells tried when looking for a boundary cell
+	static private double scale = maxScale;				// Width of the blocks, in cells
+	
+	// Adjacent cells in the cross section (forged designs) and in 3D
+	static private final byte[] planeAxes = {
+			1, 0, 0,
+			-1, 0, 0,
+			0, 0, 1,
+			0, 0, -1
+	};
+	static private final byte[] spaceAxes = {
+			1, 0, 0,
+			-1, 0, 0,
+			0, 1, 0,
+			0, -1, 0,
+			0, 0, 1,
+			0, 0, -1
+	};
+	
+	static void reset() {
+		scale = maxScale;
+	}
+	
+	static double getScale() {
+		return scale;
+	}
+	
+	// Adapt the scale to whether the last candidate was accepted
+	static void recordOutcome(boolean wasAccepted) {
+		scale *= wasAccepted ? scaleGrowth : Math.pow(scaleGrowth, -targetAcceptance / (1 - targetAcceptance));
+		scale = Math.max(1, Math.min(maxScale, scale));
+	}
+	
+	// Mutate a symmetric design by a block of about the current scale.
+	// Forged designs are mutated in their top layer and extruded, as in evolveDesignForged().
+	// Returns false (without changing the design) if the scale is down to single cells, or if no
+	//   block could be moved.
+	static boolean mutate(byte[] cells, Random random, boolean[][][] table, boolean isForged) {
+		final int size = (int)(scale + random.nextDouble());
+		if (size < 2) {
+			return false;
+		}
+		
+		final int top = HeatsinkMain.cellsY - HeatsinkMain.airPadding - 1;
+		for (int attempt = 0; attempt < maxAttempts; attempt++) {
+			final List<Integer> flips = random.nextBoolean() ?
+					shiftSegment(cells, random, size, isForged) : transferBlob(cells, random, size, isForged);
+			if (flips == null) {
+				continue;
+			}
+			flipCells(cells, flips);
+			
+			if (isForged) {
+				HeatsinkMain.reflectDesign(cells, top, top + 1);
+				HeatsinkMain.extrudeDesignInY(cells, HeatsinkMain.forgedBottomMargin);
+				return true;
+			}
+			
+			// Removing a blob can cut off metal beyond it, so undo those
+			HeatsinkMain.reflectDesign(cells, 0, top + 1);
+			if (!HeatsinkMain.hasDisconnectedComponents(cells, table)) {
+				return true;
+			}
+			flipCells(cells, flips);
+			HeatsinkMain.reflectDesign(cells, 0, top + 1);
+		}
+		return false;
+	}
+	
+	// Thin the design by a blob of metal and thicken it by a blob of air of the same size
+	private static List<Integer> transferBlob(byte[] cells, Random random, int size, boolean isForged) {
+		final int count = isForged ? size * size : size * size * size;
+		final int metalSeed = findBoundaryCell(cells, random, (byte)1, isForged);
+		final int airSeed = findBoundaryCell(cells, random, (byte)0, isForged);
+		if (metalSeed < 0 || airSeed < 0) {
+			return null;
+		}
+		final List<Integer> removed = growBlob(cells, metalSeed, count, 0, isForged);
+		final List<Integer> added = growBlob(cells, airSeed, count, 0, isForged);
+		final int transferred = Math.min(removed.size(), added.size());
+		final List<Integer> flips = new ArrayList<Integer>(removed.subList(0, transferred));
+		flips.addAll(added.subList(0, transferred));
+		return flips;
+	}
+	
+	// Move the metal connected to a boundary cell within a box around it by up to its size
+	private static List<Integer> shiftSegment(byte[] cells, Random random, int size, boolean isForged) {
+		final int seed = findBoundaryCell(cells, random, (byte)1, isForged);
+		if (seed < 0) {
+			return null;
+		}
+		final List<Integer> segment = growBlob(cells, seed, Integer.MAX_VALUE, size, isForged);
+		final HashSet<Integer> segmentSet = new HashSet<Integer>(segment);
+		
+		final byte[] axes = isForged ? planeAxes : spaceAxes;
+		final int axis = random.nextInt(axes.length / 3) * 3;
+		final int distance = 1 + random.nextInt(size);
+		final int dx = axes[axis] * distance;
+		final int dy = axes[axis+1] * distance;
+		final int dz = axes[axis+2] * distance;
+		
+		// Every cell must land inside the mutable region, on air or on the segment itself
+		final HashSet<Integer> targetSet = new HashSet<Integer>();
+		for (int code : segment) {
+			final int x = getX(code) + dx;
+			final int y = getY(code) + dy;
+			final int z = getZ(code) + dz;
+			if (!isMutable(x, y, z, isForged)) {
+				return null;
+			}
+			final int target = getCode(x, y, z);
+			if (cells[HeatsinkMain.idx(x, y, z)] == 1 && !segmentSet.contains(target)) {
+				return null;
+			}
+			targetSet.add(target);
+		}
+		
+		final List<Integer> flips = new ArrayList<Integer>();
+		for (int code : segment) {
+			if (!targetSet.contains(code)) {
+				flips.add(code);
+			}
+		}
+		for (int code : targetSet) {
+			if (!segmentSet.contains(code)) {
+				flips.add(code);
+			}
+		}
+		return flips;
+	}
+	
+	// Collect up to count mutable cells in the same state as the seed and connected to it, nearest
+	//   first.  If boxSize > 0, then only cells less than boxSize from the seed along every axis.
+	private static List<Integer> growBlob(byte[] cells, int seed, int count, int boxSize, boolean isForged) {
+		final byte state = cells[HeatsinkMain.idx(getX(seed), getY(seed), getZ(seed))];
+		final byte[] axes = isForged ? planeAxes : spaceAxes;
+		final List<Integer> blob = new ArrayList<Integer>();
+		final HashSet<Integer> visited = new HashSet<Integer>();
+		blob.add(seed);
+		visited.add(seed);
+		for (int i = 0; i < blob.size() && blob.size() < count; i++) {
+			final int code = blob.get(i);
+			for (int j = 0; j < axes.length; j += 3) {
+				final int x = getX(code) + axes[j];
+				final int y = getY(code) + axes[j+1];
+				final int z = getZ(code) + axes[j+2];
+				if (!isMutable(x, y, z, isForged) || cells[HeatsinkMain.idx(x, y, z)] != state) {
+					continue;
+				}
+				if (boxSize > 0 && (Math.abs(x - getX(seed)) >= boxSize || Math.abs(y - getY(seed)) >= boxSize ||
+						Math.abs(z - getZ(seed)) >= boxSize)) {
+					continue;
+				}
+				final int neighbor = getCode(x, y, z);
+				if (visited.add(neighbor) && blob.size() < count) {
+					blob.add(neighbor);
+				}
+			}
+		}
+		return blob;
+	}
+	
+	// Find a random mutable cell in the given state on the metal-air boundary, or -1 if none was found
+	private static int findBoundaryCell(byte[] cells, Random random, byte state, boolean isForged) {
+		final byte[] axes = isForged ? planeAxes : spaceAxes;
+		for (int i = 0; i < maxSeedTries; i++) {
+			final int x = (int)(random.nextDouble() * (HeatsinkMain.cellsX/2 - HeatsinkMain.airPadding) + HeatsinkMain.airPadding);
+			final int y = isForged ? HeatsinkMain.cellsY - HeatsinkMain.airPadding - 1 :
+					(int)(random.nextDouble() * (HeatsinkMain.cellsY - HeatsinkMain.airPadding));
+			final int z = (int)(random.nextDouble() * ((HeatsinkMain.isSquareFootprint ? x : HeatsinkMain.cellsZ/2) -
+					HeatsinkMain.airPadding) + HeatsinkMain.airPadding);
+			if (!isMutable(x, y, z, isForged) || cells[HeatsinkMain.idx(x, y, z)] != state) {
+				continue;
+			}
+			for (int j = 0; j < axes.length; j += 3) {
+				final int x2 = x + axes[j];
+				final int y2 = y + axes[j+1];
+				final int z2 = z + axes[j+2];
+				if (x2 >= 0 && x2 < HeatsinkMain.cellsX && y2 >= 0 && y2 < HeatsinkMain.cellsY &&
+						z2 >= 0 && z2 < HeatsinkMain.cellsZ && cells[HeatsinkMain.idx(x2, y2, z2)] != state) {
+					return getCode(x, y, z);
+				}
+			}
+		}
+		return -1;
+	}
+	
+	// Whether a cell can be changed: in the reflected part of the heat sink region, in the top layer
+	//   for forged designs, and outside of the heat source otherwise (as in evolveDesign3D())
+	private static boolean isMutable(int x, int y, int z, boolean isForged) {
+		final int airPadding = HeatsinkMain.airPadding;
+		if (x < airPadding || x >= HeatsinkMain.cellsX/2 || z < airPadding ||
+				z >= (HeatsinkMain.isSquareFootprint ? x : HeatsinkMain.cellsZ/2)) {
+			return false;
+		}
+		if (isForged) {
+			return y == HeatsinkMain.cellsY - airPadding - 1;
+		}
+		return y >= 0 && y < HeatsinkMain.cellsY - airPadding &&
+				!(y == 0 && x > airPadding*1.3 && z > airPadding*1.3);
+	}
+	
+	private static void flipCells(byte[] cells, List<Integer> codes) {
+		for (int code : codes) {
+			cells[HeatsinkMain.idx(getX(code), getY(code), getZ(code))] ^= 1;
+		}
+	}
+	
+	// Cells are identified by (x * cellsY + y) * cellsZ + z, whatever the memory layout
+	private static int getCode(int x, int y, int z) {
+		return (x * HeatsinkMain.cellsY + y) * HeatsinkMain.cellsZ + z;
+	}
+	
+	private static int getX(int code) {
+		return code / (HeatsinkMain.cellsY * HeatsinkMain.cellsZ);
+	}
+	
+	private static int getY(int code) {
+		return code / HeatsinkMain.cellsZ % HeatsinkMain.cellsY;
+	}
+	
+	private static int getZ(int code) {
+		return code % HeatsinkMain.cellsZ;
+	}
+}
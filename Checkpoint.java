@@ -0,0 +1,25 @@
+package heatsinkDesign;
+
+// This class is a data structure that stores a snapshot of the whole
+//    optimizer state, so that a run can be resumed after a crash.
+
+public class Checkpoint {
+	public int iteration;
+	public double previousScore;
+	public double initialScore;
+	public long elapsedMillis;		// Optimization time before this checkpoint
+	public byte[] randomState;		// Serialized random number generator
+	public byte[] cellEnabled;		// Last accepted design
+	public float[] cellHeat;		// Heat field to warm-start the next simulation
+	
+	public Checkpoint(int iteration, double previousScore, double initialScore, long elapsedMillis,
+			byte[] randomState, byte[] cellEnabled, float[] cellHeat) {
+		this.iteration = iteration;
+		this.previousScore = previousScore;
+		this.initialScore = initialScore;
+		this.elapsedMillis = elapsedMillis;
+		this.randomState = randomState;
+		this.cellEnabled = cellEnabled;
+		this.cellHeat = cellHeat;
+	}
+}
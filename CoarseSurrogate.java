@@ -0,0 +1,302 @@
+package heatsinkDesign;
+
+import java.util.Random;
+
+// This class screens candidate designs with a cheap solve on a coarser grid, so that candidates
+//    that are clearly worse than the incumbent don't need a full simulation.
+// The design is restricted to a grid that is coarser by surrogateCoarsening in each direction.
+//    The conductance between two coarse cells is the average of the conductances of the fine
+//    links across their shared face, scaled by the coarse cell size (area / length), so thin fins
+//    and air gaps still count in proportion to their area.
+// The coarse score is biased, so it is only used through the change from the incumbent's coarse
+//    score.  The change in fine score is fit to the change in coarse score (through the origin)
+//    over the candidates that were simulated, with older candidates gradually forgotten.
+// A candidate is only simulated if its predicted change, less surrogateSafety times the
+//    standard deviation of the fit, could still beat the incumbent.
+// A fraction of the candidates that would be screened out are simulated anyway, which keeps the
+//    fit from only seeing promising candidates and measures how many good candidates are lost.
+
+public class CoarseSurrogate {
+	static private final int surrogateCoarsening = 2;		// Fine cells per coarse cell in each direction (2 or 4)
+	static private final double surrogateSafety = 2;		// Standard deviations of margin given to candidates
+	static private final int minCalibrationSamples = 20;	// Candidates simulated before any are screened out
+	static private final double calibrationDecay = 0.98;	// Weight kept by older samples at each new sample
+	static private final double auditFraction = 0.1;		// Screened-out candidates that are simulated anyway
+	static private final double tolerance = 1e-6;
+	
+	// Coarse grid
+	static private final int f = surrogateCoarsening;
+	static private final int coarseX = (HeatsinkMain.cellsX + f-1) / f;
+	static private final int coarseY = (HeatsinkMain.cellsY + f-1) / f;
+	static private final int coarseZ = (HeatsinkMain.cellsZ + f-1) / f;
+	static private final int numCoarseCells = coarseX * coarseY * coarseZ;
+	static private final float[] conductanceX = new float[numCoarseCells];	// Link to the cell at x+1
+	static private final float[] conductanceY = new float[numCoarseCells];
+	static private final float[] conductanceZ = new float[numCoarseCells];
+	static private final float[] diagonal = new float[numCoarseCells];
+	static private final float[] source = new float[numCoarseCells];
+	static private final float[] scoreWeight = new float[numCoarseCells];
+	static private final float[] heat = new float[numCoarseCells];		// Kept to warm-start the next solve
+	static private final float[] residual = new float[numCoarseCells];
+	static private final float[] direction = new float[numCoarseCells];
+	static private final float[] product = new float[numCoarseCells];
+	
+	// Calibration, as decayed sums over the simulated candidates of the change in coarse score (x)
+	//   and in fine score (y) from the incumbent
+	static private double sumXX = 0;
+	static private double sumXY = 0;
+	static private double sumYY = 0;
+	static private double sumWeight = 0;
+	static private int calibrationSamples = 0;
+	
+	static private double incumbentCoarseScore = 0;
+	static private double candidateCoarseScore = 0;
+	static private final Random auditRandom = new Random(0);
+	
+	// Statistics
+	static private int screenedCount = 0;		// Candidates rejected without a full simulation
+	static private int promotedCount = 0;		// Candidates simulated because they might win
+	static private int auditedCount = 0;		// Candidates simulated although they would have been screened out
+	static private int auditedAcceptedCount = 0; // Audited candidates that turned out to be accepted
+	static private boolean wasAudited = false;
+	
+	// Set the accepted design that candidates are compared against
+	static void setIncumbent(byte[] cells) {
+		incumbentCoarseScore = solve(cells);
+	}
+	
+	// The last screened candidate was accepted, so it becomes the incumbent
+	static void acceptCandidate() {
+		incumbentCoarseScore = candidateCoarseScore;
+	}
+	
+	// Solve the candidate on the coarse grid, and decide whether it should be fully simulated
+	static boolean shouldSimulate(byte[] cells) {
+		candidateCoarseScore = solve(cells);
+		wasAudited = false;
+		if (calibrationSamples < minCalibrationSamples) {
+			promotedCount++;
+			return true;
+		}
+		
+		final double coarseChange = candidateCoarseScore - incumbentCoarseScore;
+		final double slope = sumXY / sumXX;
+		final double deviation = Math.sqrt(Math.max(0, (sumYY - 2*slope*sumXY + slope*slope*sumXX) / sumWeight));
+		if (slope * coarseChange - surrogateSafety * deviation <= 0) {
+			promotedCount++;
+			return true;
+		}
+		if (auditRandom.nextDouble() < auditFraction) {
+			auditedCount++;
+			wasAudited = true;
+			return true;
+		}
+		screenedCount++;
+		return false;
+	}
+	
+	// Add the simulated score of the last candidate to the calibration.
+	// A raced score is only a lower bound, which makes the fit more cautious rather than less.
+	static void recordScore(double score, double incumbentScore) {
+		final double x = candidateCoarseScore - incumbentCoarseScore;
+		final double y = score - incumbentScore;
+		sumXX = sumXX * calibrationDecay + x*x;
+		sumXY = sumXY * calibrationDecay + x*y;
+		sumYY = sumYY * calibrationDecay + y*y;
+		sumWeight = sumWeight * calibrationDecay + 1;
+		calibrationSamples++;
+		if (wasAudited && score <= incumbentScore) {
+			auditedAcceptedCount++;
+		}
+	}
+	
+	static int getScreenedCount() {
+		return screenedCount;
+	}
+	
+	static void resetStatistics() {
+		screenedCount = 0;
+		promotedCount = 0;
+		auditedCount = 0;
+		auditedAcceptedCount = 0;
+		sumXX = 0;
+		sumXY = 0;
+		sumYY = 0;
+		sumWeight = 0;
+		calibrationSamples = 0;
+	}
+	
+	static void printStatistics() {
+		final double slope = sumXX > 0 ? sumXY / sumXX : 0;
+		final double correlation = sumXX > 0 && sumYY > 0 ? sumXY / Math.sqrt(sumXX * sumYY) : 0;
+		HeatsinkMain.print(String.format("Surrogate: %d rejected early, %d promoted, %d audited (%d of them " +
+				"accepted), slope %.3f, correlation %.3f", screenedCount, promotedCount, auditedCount,
+				auditedAcceptedCount, slope, correlation));
+	}
+	
+	// Restrict the design to the coarse grid, solve it, and return its score
+	private static double solve(byte[] cells) {
+		restrict(cells);
+		
+		// Jacobi-preconditioned conjugate gradient
+		multiply(heat);
+		double sourceNorm = 0;
+		double rz = 0;
+		for (int i = 0; i < numCoarseCells; i++) {
+			residual[i] = source[i] - product[i];
+			direction[i] = residual[i] / diagonal[i];
+			rz += residual[i] * direction[i];
+			sourceNorm += source[i] * source[i];
+		}
+		for (int iteration = 0; iteration < numCoarseCells; iteration++) {
+			double residualNorm = 0;
+			for (int i = 0; i < numCoarseCells; i++) {
+				residualNorm += residual[i] * residual[i];
+			}
+			if (residualNorm < tolerance * tolerance * sourceNorm) {
+				break;
+			}
+			
+			multiply(direction);
+			double directionProduct = 0;
+			for (int i = 0; i < numCoarseCells; i++) {
+				directionProduct += direction[i] * product[i];
+			}
+			final float alpha = (float)(rz / directionProduct);
+			double newRz = 0;
+			for (int i = 0; i < numCoarseCells; i++) {
+				heat[i] += alpha * direction[i];
+				residual[i] -= alpha * product[i];
+				newRz += residual[i] * residual[i] / diagonal[i];
+			}
+			final float beta = (float)(newRz / rz);
+			rz = newRz;
+			for (int i = 0; i < numCoarseCells; i++) {
+				direction[i] = residual[i] / diagonal[i] + beta * direction[i];
+			}
+		}
+		
+		double score = 0;
+		for (int i = 0; i < numCoarseCells; i++) {
+			score += scoreWeight[i] * heat[i];
+		}
+		return score;
+	}
+	
+	private static int coarseIdx(int cx, int cy, int cz) {
+		return (cx * coarseY + cy) * coarseZ + cz;
+	}
+	
+	// Compute the coarse conductances, sources and score weights of the given design
+	private static void restrict(byte[] cells) {
+		for (int i = 0; i < numCoarseCells; i++) {
+			conductanceX[i] = 0;
+			conductanceY[i] = 0;
+			conductanceZ[i] = 0;
+			diagonal[i] = 0;
+			source[i] = 0;
+			scoreWeight[i] = 0;
+		}
+		
+		// Every fine link across a coarse face adds its conductance, and every fine border face adds
+		//   its border conductance, both divided by f (the average over the f*f links of a face, times
+		//   the coarse area f*f over the coarse length f, is the sum over f)
+		int scoredCount = 0;
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+					final int idx = HeatsinkMain.idx(x, y, z);
+					final byte cell = cells[idx];
+					final int c = coarseIdx(x / f, y / f, z / f);
+					final float border = HeatsinkMain.getBorderConductance(x, y, z) / f;
+					
+					if (x == HeatsinkMain.cellsX-1) {
+						diagonal[c] += border;
+					} else if ((x+1) % f == 0) {
+						conductanceX[c] += HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x+1, y, z)]) / f;
+					}
+					if (x == 0) {
+						diagonal[c] += border;
+					}
+					if (y == HeatsinkMain.cellsY-1) {
+						diagonal[c] += border;
+					} else if ((y+1) % f == 0) {
+						conductanceY[c] += HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x, y+1, z)]) / f;
+					}
+					if (y == 0) {
+						diagonal[c] += border;
+					}
+					if (z == HeatsinkMain.cellsZ-1) {
+						diagonal[c] += border;
+					} else if ((z+1) % f == 0) {
+						conductanceZ[c] += HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x, y, z+1)]) / f;
+					}
+					if (z == 0) {
+						diagonal[c] += border;
+					}
+					
+					if (HeatsinkMain.isHeatSourceCell(x, y, z)) {
+						source[c] += HeatsinkMain.heatSourceHeatPerCell;
+					}
+					if (y == 0 && x >= (int)(HeatsinkMain.airPadding*1.3f)+2 && x < HeatsinkMain.cellsX-HeatsinkMain.airPadding*1.3f-2 &&
+							z >= (int)(HeatsinkMain.airPadding*1.3f)+2 && z < HeatsinkMain.cellsZ-HeatsinkMain.airPadding*1.3f-2) {
+						scoreWeight[c]++;
+						scoredCount++;
+					}
+				}
+			}
+		}
+		
+		for (int cx = 0; cx < coarseX; cx++) {
+			for (int cy = 0; cy < coarseY; cy++) {
+				for (int cz = 0; cz < coarseZ; cz++) {
+					final int c = coarseIdx(cx, cy, cz);
+					scoreWeight[c] /= scoredCount;
+					if (cx < coarseX-1) {
+						diagonal[c] += conductanceX[c];
+						diagonal[coarseIdx(cx+1, cy, cz)] += conductanceX[c];
+					}
+					if (cy < coarseY-1) {
+						diagonal[c] += conductanceY[c];
+						diagonal[coarseIdx(cx, cy+1, cz)] += conductanceY[c];
+					}
+					if (cz < coarseZ-1) {
+						diagonal[c] += conductanceZ[c];
+						diagonal[coarseIdx(cx, cy, cz+1)] += conductanceZ[c];
+					}
+				}
+			}
+		}
+	}
+	
+	// Compute product = A * vector, where A is the coarse conductance matrix
+	private static void multiply(float[] vector) {
+		for (int cx = 0; cx < coarseX; cx++) {
+			for (int cy = 0; cy < coarseY; cy++) {
+				for (int cz = 0; cz < coarseZ; cz++) {
+					final int c = coarseIdx(cx, cy, cz);
+					float total = diagonal[c] * vector[c];
+					if (cx > 0) {
+						total -= conductanceX[coarseIdx(cx-1, cy, cz)] * vector[coarseIdx(cx-1, cy, cz)];
+					}
+					if (cx < coarseX-1) {
+						total -= conductanceX[c] * vector[coarseIdx(cx+1, cy, cz)];
+					}
+					if (cy > 0) {
+						total -= conductanceY[coarseIdx(cx, cy-1, cz)] * vector[coarseIdx(cx, cy-1, cz)];
+					}
+					if (cy < coarseY-1) {
+						total -= conductanceY[c] * vector[coarseIdx(cx, cy+1, cz)];
+					}
+					if (cz > 0) {
+						total -= conductanceZ[coarseIdx(cx, cy, cz-1)] * vector[coarseIdx(cx, cy, cz-1)];
+					}
+					if (cz < coarseZ-1) {
+						total -= conductanceZ[c] * vector[coarseIdx(cx, cy, cz+1)];
+					}
+					product[c] = total;
+				}
+			}
+		}
+	}
+}
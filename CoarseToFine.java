@@ -0,0 +1,174 @@
+package heatsinkDesign;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// This class optimizes a design from coarse to fine resolution.
+// Most of the early improvement comes from changes to the overall shape, which a coarse grid
+//    can make for a fraction of the cost of a fine one.  Each level evolves the design at one
+//    resolution, then its accepted design is upsampled to the next level, where a mutation of
+//    one cell is a smaller change to the shape.
+// The resolution is fixed when HeatsinkMain is loaded, so each level runs in its own process,
+//    and the levels pass the design on in SaveLoadTools' packed format.
+// Run without arguments to optimize through every level, then from the initial design at the
+//    finest level alone, and compare the wall clock time that each takes to reach the final score.
+
+public class CoarseToFine {
+	static private final int[] levelWidths = {20, 40, 80};		// cellsWide of each level (multiples of 20 keep the initial base forgedBottomMargin thick)
+	static private final int[] levelCandidates = {400, 200, 100};	// Candidates evolved at each level
+	static private final int baselineCandidates = 1000;				// Most candidates evolved at the finest level alone
+	static private final String levelFilePrefix = "CoarseToFineLevel";
+	static private final String resultPrefix = "Level result:";
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length == 5) {
+			runLevel(args[0], args[1], Integer.parseInt(args[2]), Long.parseLong(args[3]), Double.parseDouble(args[4]));
+			System.exit(0);
+		}
+		
+		final long startTime = System.nanoTime();
+		String input = "-";
+		double[] result = null;
+		for (int level = 0; level < levelWidths.length; level++) {
+			final String output = levelFilePrefix + level + ".dat";
+			result = runLevelProcess(levelWidths[level], input, output, levelCandidates[level], level + 1, 0);
+			if (result == null) {
+				return;
+			}
+			System.out.println(String.format("Level %d (%d wide): score %.5f, %.1f seconds so far", level,
+					levelWidths[level], result[0], (System.nanoTime() - startTime) / 1e9));
+			input = output;
+		}
+		final double finalScore = result[0];
+		final double coarseToFineSeconds = (System.nanoTime() - startTime) / 1e9;
+		
+		// The same finest level from the initial design, until it reaches the coarse-to-fine score
+		final long baselineStartTime = System.nanoTime();
+		final double[] baseline = runLevelProcess(levelWidths[levelWidths.length-1], "-", levelFilePrefix + "Baseline.dat",
+				baselineCandidates, 1, finalScore);
+		if (baseline == null) {
+			return;
+		}
+		final double baselineSeconds = (System.nanoTime() - baselineStartTime) / 1e9;
+		System.out.println(String.format("Coarse to fine: score %.5f after %.1f seconds", finalScore, coarseToFineSeconds));
+		if (baseline[1] >= 0) {
+			System.out.println(String.format("Finest level alone: reached %.5f after %.1f seconds", finalScore, baseline[1]));
+		} else {
+			System.out.println(String.format("Finest level alone: score %.5f after %d candidates and %.1f seconds, " +
+					"without reaching %.5f", baseline[0], baselineCandidates, baselineSeconds, finalScore));
+		}
+	}
+	
+	// Run one level in a new process with the given resolution, passing its output through.
+	// Returns {final score, wall seconds until it reached targetScore (or -1)}, or null if the level failed.
+	private static double[] runLevelProcess(int cellsWide, String input, String output, int numCandidates,
+			long seed, double targetScore) throws Exception {
+		final List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + "/bin/java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("-Dheatsink.cellsWide=" + cellsWide);
+		command.add("-Dheatsink.brickedLayout=" + Boolean.getBoolean("heatsink.brickedLayout"));
+		command.add(CoarseToFine.class.getName());
+		command.add(input);
+		command.add(output);
+		command.add(Integer.toString(numCandidates));
+		command.add(Long.toString(seed));
+		command.add(Double.toString(targetScore));
+		
+		final ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		final Process process = builder.start();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		double[] result = null;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.startsWith(resultPrefix)) {
+				final String[] values = line.substring(resultPrefix.length()).trim().split(" ");
+				result = new double[values.length];
+				for (int i = 0; i < values.length; i++) {
+					result[i] = Double.parseDouble(values[i]);
+				}
+			} else {
+				System.out.println("  " + line);
+			}
+		}
+		if (process.waitFor() != 0 || result == null) {
+			System.err.println("WARNING: Level at " + cellsWide + " wide failed");
+			return null;
+		}
+		return result;
+	}
+	
+	// Optimize the design loaded from input (or the initial design for "-") at this process's
+	//   resolution, then save it to output
+	private static void runLevel(String input, String output, int numCandidates, long seed, double targetScore) {
+		if (HeatsinkMain.useGPU) {
+			HeatsinkMain.initializeGPU();
+		}
+		HeatsinkMain.setInitialDesign();
+		if (!input.equals("-")) {
+			upsampleDesign(input, HeatsinkMain.cellEnabled);
+		}
+		HeatsinkMain.preprocessDesign();
+		
+		final double[] result = HeatsinkMain.optimizeDesign(new Random(seed), numCandidates, targetScore);
+		SaveLoadTools.saveDesign(output, HeatsinkMain.cellEnabled);
+		HeatsinkMain.print(String.format("%d wide: score %.5f from %.5f, %d of %d candidates accepted",
+				HeatsinkMain.cellsWide, result[1], result[0], (int)result[2], numCandidates));
+		System.out.println(resultPrefix + " " + result[1] + " " + result[5]);
+	}
+	
+	// Fill the cells with a design saved at a coarser resolution.
+	// Each cell of the heat sink region takes the state of the coarse cell its center falls in, after
+	//   scaling the coarse heat sink region to this one.  Every coarse cell covers a box of at least
+	//   one fine cell, and neighboring coarse cells cover neighboring boxes, so connected designs
+	//   stay connected.  The upper half of each axis is mapped as the mirror image of the lower
+	//   half, so symmetric designs stay symmetric.
+	static void upsampleDesign(String name, byte[] cells) {
+		final int[] size = new int[4];
+		final byte[] packed = SaveLoadTools.loadPackedDesign(name, size);
+		if (packed == null) {
+			System.err.println("WARNING: Couldn't load " + name + ", starting from the initial design");
+			return;
+		}
+		final int coarseTop = size[1] - size[3];
+		final int top = HeatsinkMain.cellsY - HeatsinkMain.airPadding;
+		
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+					byte cell = 0;
+					if (x >= HeatsinkMain.airPadding && x < HeatsinkMain.cellsX - HeatsinkMain.airPadding && y < top &&
+							z >= HeatsinkMain.airPadding && z < HeatsinkMain.cellsZ - HeatsinkMain.airPadding) {
+						final int coarseX = scaleCoordinate(x, HeatsinkMain.cellsX, HeatsinkMain.airPadding, size[0], size[3]);
+						final int coarseY = (int)((y + 0.5) * coarseTop / top);
+						final int coarseZ = scaleCoordinate(z, HeatsinkMain.cellsZ, HeatsinkMain.airPadding, size[2], size[3]);
+						final int i = (coarseX * size[1] + coarseY) * size[2] + coarseZ;
+						cell = (byte)((packed[i >> 3] >> (i & 7)) & 1);
+					}
+					cells[HeatsinkMain.idx(x, y, z)] = cell;
+				}
+			}
+		}
+		
+		// The design was forged at the coarser level, so line its fins up with this level's base
+		//   (which may be a layer thicker or thinner after scaling)
+		HeatsinkMain.extrudeDesignInY(cells, HeatsinkMain.forgedBottomMargin);
+		if (HeatsinkMain.hasDisconnectedComponents(cells, HeatsinkMain.disconnectedComponentTable)) {
+			System.err.println("WARNING: The upsampled design has disconnected components");
+		}
+	}
+	
+	// The coarse coordinate whose cell contains the center of the given fine cell, along an axis
+	//   whose heat sink region is [padding, cells - padding)
+	private static int scaleCoordinate(int u, int cells, int padding, int coarseCells, int coarsePadding) {
+		if (u > (cells-1) / 2) {
+			return coarseCells - 1 - scaleCoordinate(cells - 1 - u, cells, padding, coarseCells, coarsePadding);
+		}
+		return coarsePadding + (int)((u - padding + 0.5) * (coarseCells - coarsePadding*2) / (cells - padding*2));
+	}
+}
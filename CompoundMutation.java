@@ -0,0 +1,185 @@
+package heatsinkDesign;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// This class evaluates several independent mutations at once, keeping the ones that help.
+// Each mutation is made by mutateDesign() on its own copy of the accepted design, and kept as the
+//    cells it changed.  Mutations that change cells within minSeparation of another's are replaced,
+//    so that they interact through the heat field only weakly.
+// All of the mutations are simulated together first.  If they are rejected, the set is split in
+//    half and each half is tried in turn (on top of any half that was accepted before it), down to
+//    single mutations.  Each simulation is warm-started from the heat of the best design so far.
+// A set of N mutations takes 1 simulation when it is accepted and at most 2N-1 otherwise.
+
+public class CompoundMutation {
+	static private final int numMutations = 4;		// Mutations evaluated together
+	static private final int minSeparation = 3;		// Cells that mutations must be apart along some axis
+	static private final int maxGenerationTries = 50;	// Mutations made while looking for separated ones
+	static int lastSimulations = 0;					// Simulations the last evaluation took
+	
+	// Statistics
+	static private long totalSimulations = 0;
+	static private long totalMutations = 0;
+	static private long acceptedMutations = 0;
+	static private double totalImprovement = 0;
+	
+	// State of the current evaluation
+	static private byte[] bestCells;
+	static private float[] bestHeat;
+	static private double bestScore;
+	static private int acceptedCount;
+	
+	// Make a set of mutations of the accepted design, then find the subset that is accepted.
+	// On return, cellEnabled and cellHeat hold the best design found and its heat.
+	// Returns its score, or Double.MAX_VALUE if no mutation was accepted.
+	static double evaluate(Random random, byte[] acceptedCells, float[] acceptedHeat, double acceptedScore) {
+		final List<int[]> mutations = makeMutations(random, acceptedCells);
+		bestCells = acceptedCells.clone();
+		bestHeat = acceptedHeat.clone();
+		bestScore = acceptedScore;
+		acceptedCount = 0;
+		lastSimulations = 0;
+		
+		search(mutations);
+		
+		System.arraycopy(bestCells, 0, HeatsinkMain.cellEnabled, 0, HeatsinkMain.numCells);
+		System.arraycopy(bestHeat, 0, HeatsinkMain.cellHeat, 0, HeatsinkMain.numCells);
+		HeatsinkMain.preprocessDesign();
+		totalSimulations += lastSimulations;
+		totalMutations += mutations.size();
+		acceptedMutations += acceptedCount;
+		if (acceptedCount == 0) {
+			return Double.MAX_VALUE;
+		}
+		totalImprovement += acceptedScore - bestScore;
+		return bestScore;
+	}
+	
+	static void resetStatistics() {
+		totalSimulations = 0;
+		totalMutations = 0;
+		acceptedMutations = 0;
+		totalImprovement = 0;
+	}
+	
+	static long getTotalSimulations() {
+		return totalSimulations;
+	}
+	
+	static void printStatistics() {
+		HeatsinkMain.print(String.format("Compound mutations: %d of %d mutations accepted in %d simulations, " +
+				"%.6f improvement per simulation", acceptedMutations, totalMutations, totalSimulations,
+				totalSimulations > 0 ? totalImprovement / totalSimulations : 0));
+	}
+	
+	// Simulate the best design with the given mutations added, and keep them if they are accepted.
+	// Otherwise try each half of them.
+	private static void search(List<int[]> mutations) {
+		if (mutations.isEmpty()) {
+			return;
+		}
+		final byte[] cells = HeatsinkMain.cellEnabled;
+		System.arraycopy(bestCells, 0, cells, 0, HeatsinkMain.numCells);
+		for (int[] mutation : mutations) {
+			for (int change : mutation) {
+				final int code = change >> 1;
+				cells[HeatsinkMain.idx(getX(code), getY(code), getZ(code))] = (byte)(change & 1);
+			}
+		}
+		HeatsinkMain.preprocessDesign();
+		System.arraycopy(bestHeat, 0, HeatsinkMain.cellHeat, 0, HeatsinkMain.numCells);
+		final double score = HeatsinkMain.evaluateCandidate(false, bestScore);
+		lastSimulations++;
+		
+		if (score <= bestScore) {
+			System.arraycopy(cells, 0, bestCells, 0, HeatsinkMain.numCells);
+			System.arraycopy(HeatsinkMain.cellHeat, 0, bestHeat, 0, HeatsinkMain.numCells);
+			bestScore = score;
+			acceptedCount += mutations.size();
+			return;
+		}
+		if (mutations.size() == 1 && HeatsinkMain.useTabuList) {
+			TabuList.add(TabuList.getMutationId(bestCells, cells));
+		}
+		if (mutations.size() > 1) {
+			final int half = mutations.size() / 2;
+			search(mutations.subList(0, half));
+			search(mutations.subList(half, mutations.size()));
+		}
+	}
+	
+	// Make up to numMutations separated mutations of the design.
+	// Each is stored as the cells it changes, as (code << 1 | new state), with the cell codes
+	//   (x * cellsY + y) * cellsZ + z.
+	private static List<int[]> makeMutations(Random random, byte[] design) {
+		final List<int[]> mutations = new ArrayList<int[]>();
+		final byte[] cells = new byte[HeatsinkMain.numCells];
+		for (int i = 0; i < maxGenerationTries && mutations.size() < numMutations; i++) {
+			System.arraycopy(design, 0, cells, 0, HeatsinkMain.numCells);
+			HeatsinkMain.mutateDesign(cells, random, HeatsinkMain.disconnectedComponentTable);
+			
+			final List<Integer> changes = new ArrayList<Integer>();
+			for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+				for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+					for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+						final int idx = HeatsinkMain.idx(x, y, z);
+						if (cells[idx] != design[idx]) {
+							changes.add(getCode(x, y, z) << 1 | cells[idx]);
+						}
+					}
+				}
+			}
+			if (changes.isEmpty()) {
+				continue;
+			}
+			
+			final int[] mutation = new int[changes.size()];
+			for (int j = 0; j < mutation.length; j++) {
+				mutation[j] = changes.get(j);
+			}
+			boolean isSeparated = true;
+			for (int j = 0; j < mutations.size() && isSeparated; j++) {
+				isSeparated = areSeparated(mutation, mutations.get(j));
+			}
+			if (isSeparated) {
+				mutations.add(mutation);
+			}
+		}
+		return mutations;
+	}
+	
+	// Whether every changed cell of one mutation is at least minSeparation from those of the other
+	//   along some axis
+	private static boolean areSeparated(int[] mutation1, int[] mutation2) {
+		for (int change1 : mutation1) {
+			final int code1 = change1 >> 1;
+			for (int change2 : mutation2) {
+				final int code2 = change2 >> 1;
+				if (Math.abs(getX(code1) - getX(code2)) < minSeparation &&
+						Math.abs(getY(code1) - getY(code2)) < minSeparation &&
+						Math.abs(getZ(code1) - getZ(code2)) < minSeparation) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	private static int getCode(int x, int y, int z) {
+		return (x * HeatsinkMain.cellsY + y) * HeatsinkMain.cellsZ + z;
+	}
+	
+	private static int getX(int code) {
+		return code / (HeatsinkMain.cellsY * HeatsinkMain.cellsZ);
+	}
+	
+	private static int getY(int code) {
+		return code / HeatsinkMain.cellsZ % HeatsinkMain.cellsY;
+	}
+	
+	private static int getZ(int code) {
+		return code % HeatsinkMain.cellsZ;
+	}
+}
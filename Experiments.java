@@ -0,0 +1,653 @@
+package heatsinkDesign;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Consumer;
+
+// This class holds the experiments used to check the simulation and optimizer modes: validations
+//    of each solver against a reference, comparisons of each search mode against the plain search,
+//    the memory layout benchmark and the convection calibration.
+// They run on HeatsinkMain's design and settings, and are started from the end of HeatsinkMain.main().
+
+public class Experiments {
+	// Compare the extrapolated score against the fully converged score on a set of finned designs.
+	// The extrapolated scores are simulated as candidates, since the first simulation is never extrapolated.
+	static void validateExtrapolation() {
+		final boolean wasExtrapolating = HeatsinkMain.extrapolateScore;
+		for (int finSpacing = 2; finSpacing <= 6; finSpacing++) {
+			HeatsinkMain.setDesignIteration(finSpacing);
+			HeatsinkMain.preprocessDesign();
+			HeatsinkMain.extrapolateScore = false;
+			final double convergedScore = HeatsinkMain.runSimulation(true, Double.MAX_VALUE);
+			final int convergedIterations = HeatsinkMain.lastSimulationIterations;
+			
+			HeatsinkMain.setDesignIteration(finSpacing);
+			HeatsinkMain.preprocessDesign();
+			HeatsinkMain.extrapolateScore = true;
+			final double extrapolatedScore = HeatsinkMain.runSimulation(false, Double.MAX_VALUE);
+			final int extrapolatedIterations = HeatsinkMain.lastSimulationIterations;
+			
+			HeatsinkMain.print(String.format("Fin spacing %d: converged %.7f (%d iterations), extrapolated %.7f " +
+					"(%d iterations), relative error %.2e", finSpacing, convergedScore, convergedIterations,
+					extrapolatedScore, extrapolatedIterations,
+					Math.abs(extrapolatedScore - convergedScore) / convergedScore));
+		}
+		HeatsinkMain.extrapolateScore = wasExtrapolating;
+	}
+	
+	// Check the racing of candidates against full simulations of the same candidates.
+	// An optimization is run from the initial design, and every candidate is simulated both with and
+	//   without racing from the same heat field.  The full simulation decides whether it is accepted, so
+	//   any candidate that wins but was stopped by the race is a missed improvement.
+	static void validateRacing() {
+		final int numCandidates = 200;
+		final boolean wasRacing = HeatsinkMain.raceCandidates;
+		final int numCells = HeatsinkMain.numCells;
+		HeatsinkMain.setInitialDesign();
+		HeatsinkMain.preprocessDesign();
+		Arrays.fill(HeatsinkMain.cellHeat, 0);
+		HeatsinkMain.raceCandidates = false;
+		double score = HeatsinkMain.runSimulation(true, Double.MAX_VALUE);
+		final byte[] acceptedCells = HeatsinkMain.cellEnabled.clone();
+		final float[] acceptedHeat = HeatsinkMain.cellHeat.clone();
+		final Random random = new Random(1);
+		
+		int acceptedCount = 0;
+		int acceptedRacedCount = 0;
+		int rejectedRacedCount = 0;
+		long fullIterations = 0;
+		long racedIterations = 0;
+		for (int candidate = 0; candidate < numCandidates; candidate++) {
+			HeatsinkMain.mutateDesign(HeatsinkMain.cellEnabled, random, HeatsinkMain.disconnectedComponentTable);
+			HeatsinkMain.preprocessDesign();
+			
+			System.arraycopy(acceptedHeat, 0, HeatsinkMain.cellHeat, 0, numCells);
+			HeatsinkMain.raceCandidates = true;
+			HeatsinkMain.runSimulation(false, score);
+			final boolean wasRaced = HeatsinkMain.lastSimulationWasRaced;
+			racedIterations += HeatsinkMain.lastSimulationIterations;
+			
+			System.arraycopy(acceptedHeat, 0, HeatsinkMain.cellHeat, 0, numCells);
+			HeatsinkMain.raceCandidates = false;
+			final double fullScore = HeatsinkMain.runSimulation(false, score);
+			fullIterations += HeatsinkMain.lastSimulationIterations;
+			
+			if (fullScore <= score) {
+				acceptedCount++;
+				if (wasRaced) {
+					acceptedRacedCount++;
+					HeatsinkMain.print(String.format("Candidate %d scores %.7f but was stopped by the race", candidate,
+							fullScore));
+				}
+				score = fullScore;
+				System.arraycopy(HeatsinkMain.cellEnabled, 0, acceptedCells, 0, numCells);
+				System.arraycopy(HeatsinkMain.cellHeat, 0, acceptedHeat, 0, numCells);
+			} else {
+				if (wasRaced) {
+					rejectedRacedCount++;
+				}
+				System.arraycopy(acceptedCells, 0, HeatsinkMain.cellEnabled, 0, numCells);
+			}
+		}
+		HeatsinkMain.print(String.format("Racing: %d of %d accepted candidates stopped (missed improvements), " +
+				"%d of %d rejected candidates stopped, %.0f%% of the iterations of full simulations",
+				acceptedRacedCount, acceptedCount, rejectedRacedCount, numCandidates - acceptedCount,
+				100.0 * racedIterations / fullIterations));
+		HeatsinkMain.raceCandidates = wasRacing;
+	}
+	
+	// Compare the asynchronous solver against a tightly converged ADI solve of the same system
+	static void validateAsyncSolver() {
+		for (int finSpacing = 2; finSpacing <= 6; finSpacing++) {
+			HeatsinkMain.setDesignIteration(finSpacing);
+			HeatsinkMain.preprocessDesign();
+			final float[] referenceHeat = new float[HeatsinkMain.numCells];
+			final double referenceScore = ADISolver.solve(HeatsinkMain.cellEnabled, referenceHeat, 1e-9);
+			
+			Arrays.fill(HeatsinkMain.cellHeat, 0);
+			final long startTime = System.currentTimeMillis();
+			final double asyncScore = AsyncRelaxationSolver.solve(HeatsinkMain.cellEnabled, HeatsinkMain.cellHeat, 2e-7);
+			final long asyncTime = System.currentTimeMillis() - startTime;
+			
+			HeatsinkMain.print(String.format("Fin spacing %d: reference %.7f, asynchronous %.7f (%d sweeps, %d ms), " +
+					"relative error %.2e", finSpacing, referenceScore, asyncScore, AsyncRelaxationSolver.lastSweeps,
+					asyncTime, Math.abs(asyncScore - referenceScore) / referenceScore));
+		}
+	}
+	
+	// Compare the octree solver against a tightly converged ADI solve on the uniform grid
+	static void validateOctreeSolver() {
+		for (int finSpacing = 2; finSpacing <= 6; finSpacing++) {
+			HeatsinkMain.setDesignIteration(finSpacing);
+			HeatsinkMain.preprocessDesign();
+			final float[] referenceHeat = new float[HeatsinkMain.numCells];
+			long startTime = System.currentTimeMillis();
+			final double referenceScore = ADISolver.solve(HeatsinkMain.cellEnabled, referenceHeat, 1e-9);
+			final long referenceTime = System.currentTimeMillis() - startTime;
+			
+			Arrays.fill(HeatsinkMain.cellHeat, 0);
+			startTime = System.currentTimeMillis();
+			final double octreeScore = OctreeSolver.solve(HeatsinkMain.cellEnabled, HeatsinkMain.cellHeat, 1e-6);
+			final long octreeTime = System.currentTimeMillis() - startTime;
+			
+			HeatsinkMain.print(String.format("Fin spacing %d: reference %.7f (%d ms), octree %.7f (%d of %d cells, " +
+					"%d iterations, %d ms), relative error %.2e", finSpacing, referenceScore, referenceTime,
+					octreeScore, OctreeSolver.lastLeafCount, HeatsinkMain.cellsX * HeatsinkMain.cellsY * HeatsinkMain.cellsZ, OctreeSolver.lastIterations, octreeTime,
+					Math.abs(octreeScore - referenceScore) / referenceScore));
+		}
+	}
+	
+	// Compare scores simulated with compact heat storage against full-precision floats.
+	// Besides the finned designs, a few single mutations of one of them are included, since the
+	//   optimizer has to tell apart designs that differ by a single mutation.
+	static void validateCompactHeat() {
+		final int numMutants = 4;
+		final byte[][] designs = new byte[5 + numMutants][];
+		for (int finSpacing = 2; finSpacing <= 6; finSpacing++) {
+			HeatsinkMain.setDesignIteration(finSpacing);
+			designs[finSpacing - 2] = HeatsinkMain.cellEnabled.clone();
+		}
+		final Random mutationRandom = new Random(1);
+		for (int i = 0; i < numMutants; i++) {
+			designs[5 + i] = designs[1].clone();
+			HeatsinkMain.mutateDesign(designs[5 + i], mutationRandom, HeatsinkMain.disconnectedComponentTable);
+		}
+		
+		final boolean wasCompact = HeatsinkMain.compactHeatStorage;
+		final double[][] scores = new double[2][designs.length];
+		final long[] times = new long[2];
+		for (int mode = 0; mode < 2; mode++) {
+			HeatsinkMain.compactHeatStorage = mode == 1;
+			for (int i = 0; i < designs.length; i++) {
+				System.arraycopy(designs[i], 0, HeatsinkMain.cellEnabled, 0, HeatsinkMain.numCells);
+				Arrays.fill(HeatsinkMain.cellHeat, 0);
+				HeatsinkMain.preprocessDesign();
+				final long startTime = System.currentTimeMillis();
+				scores[mode][i] = HeatsinkMain.runSimulation(true, Double.MAX_VALUE);
+				times[mode] += System.currentTimeMillis() - startTime;
+			}
+		}
+		HeatsinkMain.compactHeatStorage = wasCompact;
+		
+		double maxError = 0;
+		for (int i = 0; i < designs.length; i++) {
+			final double error = Math.abs(scores[1][i] - scores[0][i]) / scores[0][i];
+			maxError = Math.max(maxError, error);
+			HeatsinkMain.print(String.format("%s %d: float %.7f, compact %.7f, relative error %.2e",
+					i < 5 ? "Fin spacing" : "Mutant", i < 5 ? i + 2 : i - 4, scores[0][i], scores[1][i], error));
+		}
+		
+		int misorderedPairs = 0;
+		int pairs = 0;
+		double minGap = Double.MAX_VALUE;
+		for (int i = 0; i < designs.length; i++) {
+			for (int j = i + 1; j < designs.length; j++) {
+				if ((scores[0][i] < scores[0][j]) != (scores[1][i] < scores[1][j])) {
+					misorderedPairs++;
+				}
+				minGap = Math.min(minGap, Math.abs(scores[0][i] - scores[0][j]) / scores[0][i]);
+				pairs++;
+			}
+		}
+		HeatsinkMain.print(String.format("Compact heat: max relative error %.2e, smallest gap between designs %.2e, " +
+				"misordered pairs: %d of %d, time %d ms (float %d ms)", maxError, minGap, misorderedPairs, pairs,
+				times[1], times[0]));
+	}
+	
+	// Compare solving all load cases in lockstep against solving them one at a time.
+	// The standard case is also checked against a tightly converged ADI solve of the same system.
+	static void validateLoadCases() {
+		final LoadCase[] cases = HeatsinkMain.getLoadCases();
+		for (int finSpacing = 2; finSpacing <= 6; finSpacing++) {
+			HeatsinkMain.setDesignIteration(finSpacing);
+			HeatsinkMain.preprocessDesign();
+			final double referenceScore = ADISolver.solve(HeatsinkMain.cellEnabled, new float[HeatsinkMain.numCells], 1e-9);
+			
+			MultiLoadSolver.resetHeat();
+			long startTime = System.currentTimeMillis();
+			final double[] scores = MultiLoadSolver.solve(HeatsinkMain.cellEnabled, cases, HeatsinkMain.cellHeat, 1e-6);
+			final long lockstepTime = System.currentTimeMillis() - startTime;
+			final int lockstepIterations = MultiLoadSolver.lastIterations;
+			
+			double maxDifference = 0;
+			long separateTime = 0;
+			for (int k = 0; k < cases.length; k++) {
+				MultiLoadSolver.resetHeat();
+				startTime = System.currentTimeMillis();
+				final double score = MultiLoadSolver.solve(HeatsinkMain.cellEnabled, new LoadCase[] {cases[k]}, HeatsinkMain.cellHeat, 1e-6)[0];
+				separateTime += System.currentTimeMillis() - startTime;
+				maxDifference = Math.max(maxDifference, Math.abs(score - scores[k]) / score);
+			}
+			
+			HeatsinkMain.print(String.format("Fin spacing %d: scores %s, standard case error %.2e, lockstep %d ms " +
+					"(%d iterations), separately %d ms, max difference %.2e", finSpacing, Arrays.toString(scores),
+					Math.abs(scores[0] - referenceScore) / referenceScore, lockstepTime, lockstepIterations,
+					separateTime, maxDifference));
+		}
+	}
+	
+	// Compare local time stepping against the explicit simulation's fixed global skip pattern, with and
+	//   without its momentum and extrapolation, and with and without residual slack.
+	// The explicit simulation settles on a slightly different equilibrium (see ADISolver), so every
+	//   score is checked against a tightly converged ADI solve of the cycle-averaged system.
+	static void validateLocalTimeStepping() {
+		final boolean wasExtrapolating = HeatsinkMain.extrapolateScore;
+		final boolean wasAccelerating = HeatsinkMain.accelerateDiffusion;
+		final int maxSlack = LocalTimeStepSolver.maxSlack;
+		final int testedSlack = 8;
+		for (int finSpacing = 2; finSpacing <= 6; finSpacing++) {
+			HeatsinkMain.setDesignIteration(finSpacing);
+			HeatsinkMain.preprocessDesign();
+			final double referenceScore = ADISolver.solve(HeatsinkMain.cellEnabled, new float[HeatsinkMain.numCells], 1e-9);
+			
+			String report = String.format("Fin spacing %d: reference %.7f", finSpacing, referenceScore);
+			for (int mode = 0; mode < 4; mode++) {
+				HeatsinkMain.extrapolateScore = mode == 1;
+				HeatsinkMain.accelerateDiffusion = mode == 1;
+				LocalTimeStepSolver.maxSlack = mode == 3 ? testedSlack : 1;
+				
+				Arrays.fill(HeatsinkMain.cellHeat, 0);
+				final long startTime = System.currentTimeMillis();
+				final double score = mode < 2 ? HeatsinkMain.runSimulation(true, Double.MAX_VALUE) :
+					LocalTimeStepSolver.solve(HeatsinkMain.cellEnabled, HeatsinkMain.cellHeat, 2e-7);
+				final long time = System.currentTimeMillis() - startTime;
+				
+				final String[] names = {"fixed skips", "accelerated", "local steps", "with slack"};
+				report += String.format(", %s %.7f (%d ms, %d ticks, error %.2e)", names[mode], score, time,
+						mode < 2 ? HeatsinkMain.lastSimulationIterations : LocalTimeStepSolver.lastTicks,
+						Math.abs(score - referenceScore) / referenceScore);
+				if (mode >= 2) {
+					report += String.format(" %.0f sweeps", (double)LocalTimeStepSolver.lastCellUpdates / (HeatsinkMain.cellsX * HeatsinkMain.cellsY * HeatsinkMain.cellsZ));
+				}
+			}
+			HeatsinkMain.print(report);
+		}
+		HeatsinkMain.extrapolateScore = wasExtrapolating;
+		HeatsinkMain.accelerateDiffusion = wasAccelerating;
+		LocalTimeStepSolver.maxSlack = maxSlack;
+	}
+	
+	// Compare mutations guided by the adjoint against uniformly random mutations, over a few short
+	//   optimizations from the initial design with the same seeds.
+	// The CPU time includes the adjoint solves.
+	static void compareAdjointGuidance() {
+		final int numTrials = 3;
+		final int numCandidates = 100;
+		final boolean wasGuided = HeatsinkMain.useAdjointGuidance;
+		for (int mode = 0; mode < 2; mode++) {
+			HeatsinkMain.useAdjointGuidance = mode == 1;
+			double totalGain = 0;
+			double totalAccepted = 0;
+			double totalTime = 0;
+			for (int trial = 0; trial < numTrials; trial++) {
+				final double[] result = HeatsinkMain.runOptimizationTrial(trial + 1, numCandidates, 0);
+				totalGain += result[0] - result[1];
+				totalAccepted += result[2];
+				totalTime += result[3];
+			}
+			HeatsinkMain.print(String.format("%s: acceptance rate %.1f%%, score gained %.5f per trial, %.4f per CPU-hour " +
+					"(%.0f CPU seconds)", mode == 0 ? "Uniform" : "Adjoint-guided",
+					100 * totalAccepted / (numTrials * numCandidates), totalGain / numTrials,
+					totalGain / (totalTime / 3600), totalTime));
+		}
+		HeatsinkMain.useAdjointGuidance = wasGuided;
+	}
+	
+	// Compare mutations guided by the heat field against uniformly random mutations
+	static void compareHeatFluxGuidance() {
+		final boolean wasGuided = HeatsinkMain.useHeatFluxGuidance;
+		final boolean wasAdjointGuided = HeatsinkMain.useAdjointGuidance;
+		HeatsinkMain.useAdjointGuidance = false;
+		compareModes(new String[] {"Uniform", "Heat-flux-guided"}, 100, on -> HeatsinkMain.useHeatFluxGuidance = on, null);
+		HeatsinkMain.useHeatFluxGuidance = wasGuided;
+		HeatsinkMain.useAdjointGuidance = wasAdjointGuided;
+	}
+	
+	// Compare optimizations with and without screening candidates by the coarse-grid surrogate
+	static void compareSurrogateScreening() {
+		final boolean wasScreened = HeatsinkMain.useSurrogateScreening;
+		compareModes(new String[] {"Unscreened", "Screened"}, 100, on -> HeatsinkMain.useSurrogateScreening = on,
+				CoarseSurrogate::printStatistics);
+		HeatsinkMain.useSurrogateScreening = wasScreened;
+	}
+	
+	// Compare block mutations against single cell mutations
+	static void compareBlockMutations() {
+		final boolean wasBlocked = HeatsinkMain.useBlockMutations;
+		compareModes(new String[] {"Single cells", "Blocks"}, 100, on -> HeatsinkMain.useBlockMutations = on, null);
+		HeatsinkMain.useBlockMutations = wasBlocked;
+	}
+	
+	// Compare compound mutations against one mutation per simulation (each simulation counts as a candidate)
+	static void compareCompoundMutations() {
+		final boolean wasCompound = HeatsinkMain.useCompoundMutations;
+		compareModes(new String[] {"Single mutations", "Compound mutations"}, 100,
+				on -> HeatsinkMain.useCompoundMutations = on, CompoundMutation::printStatistics);
+		HeatsinkMain.useCompoundMutations = wasCompound;
+	}
+	
+	// Compare parallel tempering against the greedy search, by the best score each finds in the same
+	//   number of simulated candidates and by the improvement per wall clock hour
+	static void compareParallelTempering() {
+		final int numTrials = 3;
+		final int numCandidates = 500;
+		
+		for (int mode = 0; mode < 2; mode++) {
+			double totalInitialScore = 0;
+			double totalBestScore = 0;
+			double totalWallSeconds = 0;
+			for (int trial = 0; trial < numTrials; trial++) {
+				final long startWallTime = System.nanoTime();
+				final double[] result;
+				if (mode == 0) {
+					result = HeatsinkMain.runOptimizationTrial(trial + 1, numCandidates, 0);
+				} else {
+					HeatsinkMain.setInitialDesign();
+					HeatsinkMain.preprocessDesign();
+					result = ParallelTempering.optimize(new Random(trial + 1), numCandidates, 0, false);
+				}
+				totalWallSeconds += (System.nanoTime() - startWallTime) / 1e9;
+				totalInitialScore += result[0];
+				totalBestScore += result[1];
+			}
+			HeatsinkMain.print(String.format("%s: best score %.5f (initial %.5f) after %d candidates, %.1f wall seconds per trial, " +
+					"%.3f improvement per wall clock hour", mode == 0 ? "Greedy" : "Parallel tempering",
+					totalBestScore / numTrials, totalInitialScore / numTrials, numCandidates, totalWallSeconds / numTrials,
+					(totalInitialScore - totalBestScore) / (totalWallSeconds / 3600)));
+		}
+	}
+	
+	// Compare the search with and without the tabu list
+	static void compareTabuList() {
+		final boolean wasTabu = HeatsinkMain.useTabuList;
+		compareModes(new String[] {"Without tabu list", "With tabu list"}, 200, on -> HeatsinkMain.useTabuList = on,
+				TabuList::printStatistics);
+		HeatsinkMain.useTabuList = wasTabu;
+	}
+	
+	// Compare short optimizations from the initial design with a mode off and on, by the score improvement
+	//   per candidate and by the CPU time that they take to reach a target score.
+	// The target is most of the improvement made with the mode off, measured with a first round of trials.
+	// setMode turns the mode on or off.  printStatistics (or null) prints the mode's own statistics after
+	//   each trial with it on.
+	private static void compareModes(String[] names, int numCandidates, Consumer<Boolean> setMode,
+			Runnable printStatistics) {
+		final int numTrials = 5;
+		final double targetFraction = 0.8;
+		
+		setMode.accept(false);
+		double initialScore = 0;
+		double totalFinalScore = 0;
+		for (int trial = 0; trial < numTrials; trial++) {
+			final double[] result = HeatsinkMain.runOptimizationTrial(trial + 1, numCandidates, 0);
+			initialScore = result[0];
+			totalFinalScore += result[1];
+		}
+		final double targetScore = initialScore - targetFraction * (initialScore - totalFinalScore / numTrials);
+		HeatsinkMain.print(String.format("Target score %.5f (initial %.5f)", targetScore, initialScore));
+		
+		for (int mode = 0; mode < 2; mode++) {
+			setMode.accept(mode == 1);
+			double totalTime = 0;
+			double totalCpuTime = 0;
+			double totalGain = 0;
+			double totalAccepted = 0;
+			int reachedCount = 0;
+			for (int trial = 0; trial < numTrials; trial++) {
+				final double[] result = HeatsinkMain.runOptimizationTrial(trial + 1, numCandidates, targetScore);
+				totalGain += result[0] - result[1];
+				totalAccepted += result[2];
+				totalCpuTime += result[3];
+				if (result[4] >= 0) {
+					totalTime += result[4];
+					reachedCount++;
+				}
+				if (mode == 1 && printStatistics != null) {
+					printStatistics.run();
+				}
+			}
+			HeatsinkMain.print(String.format("%s: %.5f improvement per candidate, reached the target in %d of %d trials " +
+					"after %.1f CPU seconds on average, %.1f CPU seconds per trial, acceptance rate %.1f%%", names[mode],
+					totalGain / (numTrials * numCandidates), reachedCount, numTrials,
+					reachedCount > 0 ? totalTime / reachedCount : 0, totalCpuTime / numTrials,
+					100 * totalAccepted / (numTrials * numCandidates)));
+		}
+	}
+	
+	// Measure the throughput of the 6-neighbor stencil with the linear and the bricked layouts.
+	// Both run the same loops over x, y and z on a copy of the current design; only the index function differs.
+	static void benchmarkLayout() {
+		final int warmupSweeps = 20;
+		final int timedSweeps = 100;
+		for (int layout = 0; layout < 2; layout++) {
+			final boolean bricked = layout == 1;
+			final int length = bricked ? HeatsinkMain.bricksX * HeatsinkMain.bricksY * HeatsinkMain.bricksZ * HeatsinkMain.brickSize*HeatsinkMain.brickSize*HeatsinkMain.brickSize : HeatsinkMain.cellsX * HeatsinkMain.cellsY * HeatsinkMain.cellsZ;
+			final byte[] cells = new byte[length];
+			final float[] heat = new float[length];
+			final float[] deltaHeat = new float[length];
+			for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+				for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+					for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+						final int i = bricked ? HeatsinkMain.brickedIdx(x, y, z) : HeatsinkMain.linearIdx(x, y, z);
+						cells[i] = HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z)];
+						heat[i] = HeatsinkMain.cellHeat[HeatsinkMain.idx(x, y, z)];
+					}
+				}
+			}
+			
+			final double[] cellsPerSecond = new double[2];
+			for (int parallel = 0; parallel < 2; parallel++) {
+				runStencilSweeps(cells, heat, deltaHeat, bricked, parallel == 1, warmupSweeps);
+				final long startTime = System.nanoTime();
+				runStencilSweeps(cells, heat, deltaHeat, bricked, parallel == 1, timedSweeps);
+				cellsPerSecond[parallel] = (double)HeatsinkMain.cellsX * HeatsinkMain.cellsY * HeatsinkMain.cellsZ * timedSweeps / (System.nanoTime() - startTime) * 1e9;
+			}
+			
+			HeatsinkMain.print(String.format("%s layout: %.1f million cells per second on 1 thread, %.1f on %d threads",
+					bricked ? "Bricked" : "Linear", cellsPerSecond[0] / 1e6, cellsPerSecond[1] / 1e6, HeatsinkMain.numThreads));
+		}
+	}
+	
+	private static void runStencilSweeps(final byte[] cells, final float[] heat, final float[] deltaHeat,
+			final boolean bricked, boolean parallel, int sweeps) {
+		for (int sweep = 0; sweep < sweeps; sweep++) {
+			if (parallel) {
+				ADISolver.runInParallel(new ADISolver.LineTask() {
+					public void run(int threadNum) {
+						for (int slab = threadNum; slab * HeatsinkMain.brickSize < HeatsinkMain.cellsX; slab += HeatsinkMain.numThreads) {
+							computeStencil(cells, heat, deltaHeat, bricked, slab * HeatsinkMain.brickSize, Math.min(HeatsinkMain.cellsX, (slab+1) * HeatsinkMain.brickSize));
+						}
+					}
+				});
+			} else {
+				computeStencil(cells, heat, deltaHeat, bricked, 0, HeatsinkMain.cellsX);
+			}
+			for (int i = 0; i < heat.length; i++) {
+				heat[i] += deltaHeat[i];
+			}
+		}
+	}
+	
+	// Heat flow into every cell in the given range of x, in either layout
+	private static void computeStencil(byte[] cells, float[] heat, float[] deltaHeat, boolean bricked, int startX, int endX) {
+		
+		// Array to represent the 6 adjacent cells
+		final byte[] axes = {
+				1, 0, 0,
+				-1, 0, 0,
+				0, 1, 0,
+				0, -1, 0,
+				0, 0, 1,
+				0, 0, -1
+		};
+		
+		for (int x = startX; x < endX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+					final int i = bricked ? HeatsinkMain.brickedIdx(x, y, z) : HeatsinkMain.linearIdx(x, y, z);
+					float flow = 0;
+					for (int a = 0; a < 6 * 3; a += 3) {
+						final int x2 = x + axes[a+0];
+						final int y2 = y + axes[a+1];
+						final int z2 = z + axes[a+2];
+						if (x2 >= 0 && x2 < HeatsinkMain.cellsX && y2 >= 0 && y2 < HeatsinkMain.cellsY && z2 >= 0 && z2 < HeatsinkMain.cellsZ) {
+							final int i2 = bricked ? HeatsinkMain.brickedIdx(x2, y2, z2) : HeatsinkMain.linearIdx(x2, y2, z2);
+							flow += HeatsinkMain.getConductance(cells[i], cells[i2]) * (heat[i2] - heat[i]);
+						} else {
+							flow -= HeatsinkMain.getConductance((byte)0, (byte)0) * heat[i];
+						}
+					}
+					deltaHeat[i] = flow;
+				}
+			}
+		}
+	}
+	
+	// Fit the convection coefficient of the metal-only solver to the air simulation.
+	// Both are run on a set of finned designs, and the coefficient that minimizes the squared
+	//   log ratio of their scores is found with a golden section search.
+	// The reference is always the explicit solver, since the scores the metal-only solver is
+	//   compared with in practice come from it, not from one of the alternative solvers.
+	static void calibrateConvection() {
+		final int minFinSpacing = 2;
+		final int maxFinSpacing = 6;
+		final int numDesigns = maxFinSpacing - minFinSpacing + 1;
+		final byte[][] designs = new byte[numDesigns][];
+		final double[] referenceScores = new double[numDesigns];
+		
+		final boolean wasMetalOnly = HeatsinkMain.useMetalOnlySolver;
+		final boolean wasADI = HeatsinkMain.useADISolver;
+		final boolean wasAsync = HeatsinkMain.useAsyncSolver;
+		final boolean wasOctree = HeatsinkMain.useOctreeSolver;
+		final boolean wasLoadCases = HeatsinkMain.useLoadCases;
+		final boolean wasLocalTimeStepping = HeatsinkMain.useLocalTimeStepping;
+		HeatsinkMain.useMetalOnlySolver = false;
+		HeatsinkMain.useADISolver = false;
+		HeatsinkMain.useAsyncSolver = false;
+		HeatsinkMain.useOctreeSolver = false;
+		HeatsinkMain.useLoadCases = false;
+		HeatsinkMain.useLocalTimeStepping = false;
+		for (int i = 0; i < numDesigns; i++) {
+			HeatsinkMain.setDesignIteration(minFinSpacing + i);
+			HeatsinkMain.preprocessDesign();
+			referenceScores[i] = HeatsinkMain.runSimulation(true, Double.MAX_VALUE);
+			designs[i] = HeatsinkMain.cellEnabled.clone();
+			HeatsinkMain.print("Fin spacing " + (minFinSpacing + i) + ": air model score " + referenceScores[i]);
+		}
+		HeatsinkMain.useMetalOnlySolver = wasMetalOnly;
+		HeatsinkMain.useADISolver = wasADI;
+		HeatsinkMain.useAsyncSolver = wasAsync;
+		HeatsinkMain.useOctreeSolver = wasOctree;
+		HeatsinkMain.useLoadCases = wasLoadCases;
+		HeatsinkMain.useLocalTimeStepping = wasLocalTimeStepping;
+		
+		// Search over the log of the coefficient, since the score is roughly inversely proportional to it
+		final double goldenRatio = (Math.sqrt(5) - 1) / 2;
+		double low = Math.log(HeatsinkMain.conductivity / 10000);
+		double high = Math.log(HeatsinkMain.conductivity / 10);
+		final float[] heat = new float[HeatsinkMain.numCells];
+		final double[] scores = new double[numDesigns];
+		while (high - low > 0.001) {
+			final double a = high - goldenRatio * (high - low);
+			final double b = low + goldenRatio * (high - low);
+			if (getCalibrationError(designs, referenceScores, heat, scores, (float)Math.exp(a)) <
+					getCalibrationError(designs, referenceScores, heat, scores, (float)Math.exp(b))) {
+				high = b;
+			} else {
+				low = a;
+			}
+		}
+		final float coefficient = (float)Math.exp((low + high) / 2);
+		
+		// The ranking matters more than the absolute scores, so count pairs that are ordered differently
+		double error = 0;
+		int misorderedPairs = 0;
+		for (int i = 0; i < numDesigns; i++) {
+			Arrays.fill(heat, 0);
+			scores[i] = MetalOnlySolver.solve(designs[i], heat, coefficient, 1e-6);
+			error += Math.pow(Math.log(scores[i] / referenceScores[i]), 2);
+			HeatsinkMain.print(String.format("Fin spacing %d: air model %.6f, metal-only %.6f (%d of %d cells)",
+					minFinSpacing + i, referenceScores[i], scores[i], MetalOnlySolver.lastCellCount, HeatsinkMain.cellsX * HeatsinkMain.cellsY * HeatsinkMain.cellsZ));
+			for (int j = i + 1; j < numDesigns; j++) {
+				if ((referenceScores[i] < referenceScores[j]) != (scores[i] < scores[j])) {
+					misorderedPairs++;
+				}
+			}
+		}
+		HeatsinkMain.print(String.format("Convection coefficient: %.6g, RMS log error: %.4f, misordered pairs: %d of %d",
+				coefficient, Math.sqrt(error / numDesigns), misorderedPairs, numDesigns * (numDesigns - 1) / 2));
+		HeatsinkMain.convectionCoefficient = coefficient;
+	}
+	
+	// Sum of squared log ratios between the metal-only and reference scores
+	private static double getCalibrationError(byte[][] designs, double[] referenceScores, float[] heat,
+			double[] scores, float coefficient) {
+		double error = 0;
+		for (int i = 0; i < designs.length; i++) {
+			Arrays.fill(heat, 0);
+			scores[i] = MetalOnlySolver.solve(designs[i], heat, coefficient, 1e-6);
+			final double logRatio = Math.log(scores[i] / referenceScores[i]);
+			error += logRatio * logRatio;
+		}
+		return error;
+	}
+	
+	// Compare the far-field border at a thin padding against the full padding on a set of finned designs.
+	// The far-field border at the full padding shows how much the border itself changes the scores,
+	//   and the difference between the two far-field runs shows the error from cutting the padding.
+	static void reportFarFieldDeviation() {
+		final boolean wasFarField = HeatsinkMain.farFieldBoundary;
+		final int thinPadding = HeatsinkMain.farFieldPadding;
+		final int numDesigns = 5;
+		final double[] fullScores = new double[numDesigns];
+		final double[] thinScores = new double[numDesigns];
+		double maxDeviation = 0;
+		double maxCutDeviation = 0;
+		for (int i = 0; i < numDesigns; i++) {
+			final int finSpacing = i + 2;
+			HeatsinkMain.farFieldBoundary = false;
+			HeatsinkMain.setDesignIteration(finSpacing);
+			HeatsinkMain.preprocessDesign();
+			long startTime = System.currentTimeMillis();
+			fullScores[i] = HeatsinkMain.runSimulation(true, Double.MAX_VALUE);
+			final long fullTime = System.currentTimeMillis() - startTime;
+			
+			HeatsinkMain.farFieldBoundary = true;
+			HeatsinkMain.farFieldPadding = HeatsinkMain.airPadding;
+			HeatsinkMain.setDesignIteration(finSpacing);
+			HeatsinkMain.preprocessDesign();
+			final double farFieldScore = HeatsinkMain.runSimulation(true, Double.MAX_VALUE);
+			
+			HeatsinkMain.farFieldPadding = thinPadding;
+			HeatsinkMain.setDesignIteration(finSpacing);
+			HeatsinkMain.preprocessDesign();
+			startTime = System.currentTimeMillis();
+			thinScores[i] = HeatsinkMain.runSimulation(true, Double.MAX_VALUE);
+			final long thinTime = System.currentTimeMillis() - startTime;
+			
+			final double deviation = (thinScores[i] - fullScores[i]) / fullScores[i];
+			final double cutDeviation = (thinScores[i] - farFieldScore) / farFieldScore;
+			maxDeviation = Math.max(maxDeviation, Math.abs(deviation));
+			maxCutDeviation = Math.max(maxCutDeviation, Math.abs(cutDeviation));
+			HeatsinkMain.print(String.format("Fin spacing %d: full padding %.6f (%d ms), far-field full padding %.6f, " +
+					"far-field thin padding %.6f (%d ms), deviation %+.3f%% (%+.3f%% from cutting)", finSpacing,
+					fullScores[i], fullTime, farFieldScore, thinScores[i], thinTime, deviation * 100, cutDeviation * 100));
+		}
+		
+		int misorderedPairs = 0;
+		for (int i = 0; i < numDesigns; i++) {
+			for (int j = i + 1; j < numDesigns; j++) {
+				if ((fullScores[i] < fullScores[j]) != (thinScores[i] < thinScores[j])) {
+					misorderedPairs++;
+				}
+			}
+		}
+		final int margin = HeatsinkMain.airPadding - thinPadding;
+		final long thinCells = (long)(HeatsinkMain.cellsX - margin*2) * (HeatsinkMain.cellsY - margin) * (HeatsinkMain.cellsZ - margin*2);
+		HeatsinkMain.print(String.format("Padding %d -> %d cells simulates %.0f%% of the grid. Max deviation %.3f%% " +
+				"(%.3f%% from cutting), misordered pairs: %d of %d", HeatsinkMain.airPadding, thinPadding, 100.0 * thinCells / ((long)HeatsinkMain.cellsX * HeatsinkMain.cellsY * HeatsinkMain.cellsZ),
+				maxDeviation * 100, maxCutDeviation * 100, misorderedPairs, numDesigns * (numDesigns - 1) / 2));
+		HeatsinkMain.farFieldBoundary = wasFarField;
+	}
+
+}
@@ -1,5 +1,9 @@
 package heatsinkDesign;
 
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
 // Created by Daniel Williams
 // Created on September 11, 2020
 // Last updated on December 4, 2020
@@ -9,42 +13,90 @@ package heatsinkDesign;
 public class HeatsinkMain {
 	
 	// Configurations
-	static final int cellsWide = 80;	// Must be divisible by 8
+	static final int cellsWide = Integer.getInteger("heatsink.cellsWide", 80); // Resolution (cells across a cube domain)
+	static final int cellsX = Integer.getInteger("heatsink.cellsX", cellsWide); // Size of the domain in each direction
+	static final int cellsY = Integer.getInteger("heatsink.cellsY", cellsWide);
+	static final int cellsZ = Integer.getInteger("heatsink.cellsZ", cellsWide);
+	static final boolean useBrickedLayout = Boolean.getBoolean("heatsink.brickedLayout"); // Store cells in 4x4x4 bricks
 	static private boolean restrictTo60FPS = false;
-	static private final int numThreads = 6;
+	static final int numThreads = 6;
 	static final int airPadding = (int)(cellsWide*0.11 + 2); // Number of cells of padding air around the heat sink
 	static final float heatSourceHeatPerCell = cellsWide * 0.02f / (float)Math.pow(cellsWide - airPadding - 4, 1.5);
 	static final boolean useGPU = true;
+	static private final boolean resumeFromCheckpoint = false;
+	static private final int checkpointIntervalSeconds = 300;
+	static private final String checkpointName = "Checkpoint.dat";
+	static private final boolean keepAcceptedHeatOnRevert = true; // Warm-start from the accepted design's heat
+	static private final boolean compareHeatRestore = false; // Alternate restoring on reverts and report both
+	static private final boolean pipelineMutations = true; // Prepare the next candidate during the simulation
+	static boolean raceCandidates = false; // Stop simulating candidates that can't win (check with validateRacing)
+	static private final double raceTolerance = 1e-5; // Relative margin a raced candidate must lose by
+	static private final double raceSafetyFactor = 2; // Multiple of the predicted remaining change to allow
+	static private final int raceConsistentRatios = 20; // Consecutive agreeing convergence ratios needed to race
+	static private final double ratioAgreement = 0.02; // Largest change between convergence ratios that still agrees
+	static boolean extrapolateScore = false; // Predict the equilibrium score before full convergence (not for the first simulation)
+	static private final double extrapolationMaxError = 5e-6; // Relative error allowed in the predicted score
+	static private final int extrapolationStride = 10; // Number of score samples between extrapolation points
+	static boolean accelerateDiffusion = false; // Add a momentum term after each full update cycle
+	static private final float maxMomentum = 0.95f; // Upper limit on the estimated momentum
+	static private final int momentumEstimationSamples = 40; // Score samples before the convergence rate is estimated
+	static private final int momentumConsistentRatios = 10; // Consecutive agreeing convergence ratios needed to estimate it
+	static boolean useADISolver = false; // Solve for equilibrium with implicit line solves (CPU only)
+	static boolean useAsyncSolver = false; // Relax slabs in place without barriers between threads (CPU only)
+	static boolean useMetalOnlySolver = false; // Solve conduction in the metal only, with convection to air
+	static float convectionCoefficient = 0.000139f; // Heat lost per exposed face, fit at 80 wide by calibrateConvection
+	static boolean useOctreeSolver = false; // Solve on an adaptive mesh, merging cells far from the surface (CPU only)
+	static boolean farFieldBoundary = false; // Replace the 0-degree border with an absorbing far-field border
+	static int farFieldPadding = 3; // Cells of air padding simulated with the far-field border
+	static boolean useLoadCases = false; // Score designs by their average over several heat sources (CPU only)
+	static boolean useLocalTimeStepping = false; // Advance each brick at its own stable rate, by priority (CPU only)
+	static boolean compactHeatStorage = false; // Store the heat as 16-bit fixed point while simulating (CPU only)
+	static private final float maxCompactHeat = 4; // Largest heat that can be stored in compact form
+	static boolean useAdjointGuidance = false; // Choose forged mutations by adjoint-predicted improvement
+	static boolean useHeatFluxGuidance = false; // Choose mutations by the heat field (if not useAdjointGuidance)
+	static boolean useSurrogateScreening = false; // Reject candidates that a coarse-grid solve predicts are worse
+	static boolean useBlockMutations = false; // Move whole blocks of cells, sized by the recent acceptance rate
+	static boolean useCompoundMutations = false; // Simulate several separated mutations at once, and bisect rejected sets
+	static private boolean useParallelTempering = false; // Evolve replicas at several temperatures instead of greedily
+	static boolean useTabuList = false; // Make mutations again instead of simulating recently rejected ones
 	
 	// Internal variables
-	static final int cellsWide3 = cellsWide * cellsWide * cellsWide;
-	static final byte[] cellEnabled = new byte[cellsWide3];
-	static final float[] cellHeat = new float[cellsWide3];
-	static final byte[] isCellOnBoundary = new byte[cellsWide3]; // Whether each metal cell is on the metal-air boundary
-	static final float[] cellDeltaHeat = new float[cellsWide3]; // Change in cell heat on each iteration
-	static final boolean[][][] disconnectedComponentTable = new boolean[cellsWide][cellsWide][cellsWide];// Scratch space
+	static final int brickSize = 4; // Width of a brick in the bricked layout (brickedIdx assumes 4)
+	static final int bricksX = (cellsX + brickSize-1) / brickSize;
+	static final int bricksY = (cellsY + brickSize-1) / brickSize;
+	static final int bricksZ = (cellsZ + brickSize-1) / brickSize;
+	static final int numCells = useBrickedLayout ? // Length of the cell arrays (whole bricks, so may include padding)
+			bricksX * bricksY * bricksZ * brickSize*brickSize*brickSize : cellsX * cellsY * cellsZ;
+	static final boolean isSquareFootprint = cellsX == cellsZ; // Whether designs can be symmetric across the diagonal
+	static final int forgedBottomMargin = (int)(cellsWide*0.05 + 1); // Layers left out of the extrusion in evolveDesignForged
+	static final byte[] cellEnabled = new byte[numCells];
+	static final float[] cellHeat = new float[numCells];
+	static final byte[] isCellOnBoundary = new byte[numCells]; // Whether each metal cell is on the metal-air boundary
+	static final float[] cellDeltaHeat = new float[numCells]; // Change in cell heat on each iteration
+	static final float[] acceptedCellHeat = new float[numCells]; // Equilibrium of the last accepted design
+	static final float[] cellPreviousStep = new float[numCells]; // Heat change over the previous cycle (for momentum)
+	static final float[] cellCycleStart = new float[numCells]; // Heat at the start of the current cycle
+	static final short[] compactHeat = new short[numCells]; // Heat in units of compactHeatQuantum (unsigned)
+	static final float compactHeatQuantum = maxCompactHeat / 65535;
+	static int lastSimulationIterations = 0; // Number of iterations the last simulation took to converge
+	static boolean lastSimulationWasRaced = false; // Whether the last simulation was stopped early
+	static boolean lastCandidateWasScreened = false; // Whether the last candidate was rejected without a simulation
+	static final boolean[][][] disconnectedComponentTable = new boolean[cellsX][cellsY][cellsZ];// Scratch space
 	static CUDAProgram gpuProgram;
+	static Random random = new Random(); // Used for all evolution decisions (saved in checkpoints)
 	
 	// Rate of heat conduction
 	// Aluminum: k = 205
 	// Static air: k = 0.1
 	// Free convection: k = ~5
 	// Forced air: k = 30
-	static private final float conductivity = 0.16666f;		// Maximum possible conductivity = 1/6
+	static final float conductivity = 0.16666f;		// Maximum possible conductivity = 1/6
 	static private final int airIterationSkips = 30;		// k = conductivity / this number
 	static private final int boundaryIterationSkips = 60;	// k = conductivity / this number (must be multiple of above)
 	
 	public static void main(String[] args) {
 		if (useGPU) {
-			CUDAProgram.initializeGPU();
-			gpuProgram = new CUDAProgram("thermalDiffusionStep", "src/heatsinkDesign/ThermalSimCUDA.cu");
-			gpuProgram.setBlockSize(4, 4, 4);
-			gpuProgram.setIterations(cellsWide, cellsWide, cellsWide);
-			
-			// Set the constant arguments for the CUDA program
-			gpuProgram.setInputArg(0, cellsWide);
-			gpuProgram.setInputArg(1, airPadding);
-			gpuProgram.setInputArg(8, heatSourceHeatPerCell);
+			initializeGPU();
 		}
 		
 		setInitialDesign();
@@ -57,67 +109,227 @@ public class HeatsinkMain {
 		//VoxelRayTracer.initialize("src/heatsinkDesign/imagesRandom");
 		//VoxelRayTracer.initialize(null); // No saving
 		
+		if (useParallelTempering) {
+			ParallelTempering.optimize(random, Integer.MAX_VALUE, 0, true);
+			return;
+		}
 		
 		//*
 		double previousScore = 999999;
 		double initialScore = 0;
-		final byte[] previousCellEnabled = new byte[cellsWide3];
+		final byte[] previousCellEnabled = cellEnabled.clone(); // The pipeline mutates it for the first candidate's rejection
 		long startTime = 0; // Initialized after the first iteration
 		int iteration = 0;
+		
+		// Continue from the last checkpoint, including its heat field, so that the first
+		//   simulation starts near equilibrium instead of from zero.
+		final Checkpoint resumed = resumeFromCheckpoint ? SaveLoadTools.loadCheckpoint(checkpointName) : null;
+		if (resumed != null) {
+			System.arraycopy(resumed.cellEnabled, 0, cellEnabled, 0, numCells);
+			System.arraycopy(resumed.cellEnabled, 0, previousCellEnabled, 0, numCells);
+			System.arraycopy(resumed.cellHeat, 0, cellHeat, 0, numCells);
+			System.arraycopy(resumed.cellHeat, 0, acceptedCellHeat, 0, numCells);
+			random = SaveLoadTools.deserializeRandom(resumed.randomState);
+			previousScore = resumed.previousScore;
+			initialScore = resumed.initialScore;
+			iteration = resumed.iteration;
+			startTime = System.currentTimeMillis() - resumed.elapsedMillis;
+			preprocessDesign();
+			print("Resumed from checkpoint at iteration " + iteration + ", score: " + previousScore);
+		}
+		long lastCheckpointTime = System.currentTimeMillis();
+		
+		// Convergence statistics for candidates simulated after a revert,
+		//   split by whether the accepted heat field was restored first
+		boolean restoredHeatBeforeSimulation = false;
+		boolean wasReverted = false;
+		boolean restoreOnNextRevert = true;
+		long restoredIterations = 0;
+		int restoredCount = 0;
+		long unrestoredIterations = 0;
+		int unrestoredCount = 0;
+		
+		// Simulation cost of accepted and rejected candidates
+		long acceptedIterations = 0;
+		int acceptedCount = 0;
+		long rejectedIterations = 0;
+		int rejectedCount = 0;
+		int racedCount = 0;
+		
+		// Compound mutations make their own candidates from the accepted design, so nothing is prepared
+		final boolean isPipelined = pipelineMutations && !useCompoundMutations;
+		final MutationPipeline pipeline = isPipelined ? new MutationPipeline() : null;
 		while (true) {
-			final double newScore = runSimulation(iteration == 0);
+			// Prepare the next candidate for both outcomes while this one is simulated
+			if (isPipelined) {
+				pipeline.start(previousCellEnabled, cellEnabled, random.nextLong());
+			}
+			
+			final double newScore = useCompoundMutations && iteration > 0 ?
+					CompoundMutation.evaluate(random, previousCellEnabled, acceptedCellHeat, previousScore) :
+					evaluateCandidate(iteration == 0, previousScore);
 			if (iteration == 0) {
 				initialScore = newScore;
 			}
 			//print("Score: " + newScore);
 			
+			if (wasReverted && !lastCandidateWasScreened) {
+				if (restoredHeatBeforeSimulation) {
+					restoredIterations += lastSimulationIterations;
+					restoredCount++;
+				} else {
+					unrestoredIterations += lastSimulationIterations;
+					unrestoredCount++;
+				}
+			}
+			
 			// If the new score is worse than the previous, then revert
 			if (newScore > previousScore) {
+				if (!lastCandidateWasScreened) {
+					rejectedIterations += lastSimulationIterations;
+					rejectedCount++;
+				}
+				if (lastSimulationWasRaced) {
+					racedCount++;
+				}
+				if (useTabuList && !useCompoundMutations) {
+					TabuList.add(TabuList.getMutationId(previousCellEnabled, cellEnabled));
+				}
+				
 				// Revert to the previous design
-				for (int i = 0; i < cellsWide3; i++) {
+				for (int i = 0; i < numCells; i++) {
 					cellEnabled[i] = previousCellEnabled[i];
 				}
+				
+				// The heat field still holds the rejected design's equilibrium.
+				// Start the next candidate from the accepted design's equilibrium instead.
+				final boolean shouldRestore = compareHeatRestore ? restoreOnNextRevert : keepAcceptedHeatOnRevert;
+				restoreOnNextRevert = !restoreOnNextRevert;
+				if (shouldRestore) {
+					System.arraycopy(acceptedCellHeat, 0, cellHeat, 0, numCells);
+				}
+				restoredHeatBeforeSimulation = shouldRestore;
+				wasReverted = true;
 			} else {
 				print("BETTER!");
+				acceptedIterations += lastSimulationIterations;
+				acceptedCount++;
+				
 				// This design was better, so save it.
-				for (int i = 0; i < cellsWide3; i++) {
+				for (int i = 0; i < numCells; i++) {
 					previousCellEnabled[i] = cellEnabled[i];
 				}
+				System.arraycopy(cellHeat, 0, acceptedCellHeat, 0, numCells);
 				previousScore = newScore;
+				wasReverted = false;
 			}
 			
 			if (iteration == 0) {
 				startTime = System.currentTimeMillis();
 			}
 			
-			// Randomize a few times (no disconnected components are allowed)
-			//evolveDesignExtruded();
-			evolveDesignForged(true);
-			//evolveDesign3D(true);
-			
-			if (Math.random() < 0.4) {
-				//evolveDesignExtruded();
-				evolveDesignForged(true);
-				//evolveDesign3D(true);
+			// Periodically save the whole optimizer state in the background
+			if (System.currentTimeMillis() - lastCheckpointTime > checkpointIntervalSeconds * 1000L) {
+				lastCheckpointTime = System.currentTimeMillis();
+				SaveLoadTools.saveCheckpointInBackground(new Checkpoint(iteration, previousScore,
+						initialScore, lastCheckpointTime - startTime, SaveLoadTools.serializeRandom(random),
+						previousCellEnabled.clone(), acceptedCellHeat.clone()), checkpointName);
 			}
-			if (Math.random() < 0.1) {
-				//evolveDesignExtruded();
-				evolveDesignForged(true);
-				//evolveDesign3D(true);
+			
+			if (isPipelined) {
+				// Use the candidate that was prepared for this outcome during the simulation
+				pipeline.takeCandidate(!wasReverted, cellEnabled, isCellOnBoundary);
+				uploadDesignToGPU();
 			}
 			
-			preprocessDesign();
+			// No mutation is being prepared now, so the guide can be updated for the accepted design.
+			// With the pipeline, the candidate taken above was prepared with the previous predictions.
+			if (!wasReverted) {
+				updateMutationGuide(previousCellEnabled, acceptedCellHeat);
+			}
+			if (useBlockMutations && iteration > 0) {
+				BlockMutations.recordOutcome(!wasReverted);
+			}
+			if (!isPipelined && !useCompoundMutations) {
+				mutateDesign(cellEnabled, random, disconnectedComponentTable);
+				preprocessDesign();
+			}
 			iteration++;
 			if (iteration % 20 == 0) {
 				final long time = System.currentTimeMillis();
 				final String ipsString = String.format("%.2f", iteration*1000f/(time - startTime));
 				print("Score: " + newScore + ", Iteration: " + iteration + ", IPS: " + ipsString);
 				print("Initial score: " + initialScore + ", Time: " + (time - startTime)/1000/60 + " minutes");
+				if (isPipelined) {
+					pipeline.printStatistics();
+				}
+				if (useCompoundMutations) {
+					CompoundMutation.printStatistics();
+				}
+				if (useSurrogateScreening) {
+					CoarseSurrogate.printStatistics();
+				}
+				if (useBlockMutations) {
+					print(String.format("Block mutation scale: %.2f cells", BlockMutations.getScale()));
+				}
+				if (useTabuList) {
+					TabuList.printStatistics();
+				}
+				print("Iterations per candidate: " +
+						(acceptedCount > 0 ? acceptedIterations / acceptedCount : 0) + " accepted (" + acceptedCount + "), " +
+						(rejectedCount > 0 ? rejectedIterations / rejectedCount : 0) + " rejected (" + rejectedCount +
+						", " + racedCount + " stopped early)");
+				if (restoredCount > 0 || unrestoredCount > 0) {
+					print("Iterations after revert: " +
+							(restoredCount > 0 ? restoredIterations / restoredCount : 0) + " (accepted heat restored, " +
+							restoredCount + " candidates), " +
+							(unrestoredCount > 0 ? unrestoredIterations / unrestoredCount : 0) + " (rejected heat kept, " +
+							unrestoredCount + " candidates)");
+				}
 			}
 		}
 		//*/
 		
-		//runSimulation(true);
+		//runSimulation(true, Double.MAX_VALUE);
+		//Experiments.validateExtrapolation();
+		//Experiments.validateRacing();
+		//Experiments.validateAsyncSolver();
+		//Experiments.calibrateConvection();
+		//Experiments.reportFarFieldDeviation();
+		//Experiments.validateOctreeSolver();
+		//Experiments.benchmarkLayout();
+		//Experiments.validateCompactHeat();
+		//Experiments.validateLoadCases();
+		//Experiments.validateLocalTimeStepping();
+		//Experiments.compareAdjointGuidance();
+		//Experiments.compareHeatFluxGuidance();
+		//Experiments.compareSurrogateScreening();
+		//Experiments.compareBlockMutations();
+		//Experiments.compareCompoundMutations();
+		//Experiments.compareParallelTempering();
+		//Experiments.compareTabuList();
+	}
+	
+	// Start the GPU and set the constant arguments of the simulation program
+	static void initializeGPU() {
+		CUDAProgram.initializeGPU();
+		gpuProgram = new CUDAProgram("thermalDiffusionStep", "src/heatsinkDesign/ThermalSimCUDA.cu");
+		gpuProgram.setBlockSize(4, 4, 4);
+		gpuProgram.setIterations(cellsX, cellsY, cellsZ);
+		
+		// Set the constant arguments for the CUDA program
+		gpuProgram.setInputArg(0, cellsX);
+		gpuProgram.setInputArg(1, airPadding);
+		gpuProgram.setInputArg(8, heatSourceHeatPerCell);
+		gpuProgram.setInputArg(9, cellPreviousStep);
+		gpuProgram.setInputArg(10, cellCycleStart);
+		gpuProgram.setInputArg(11, 0f);
+		gpuProgram.setInputArg(12, (byte)0);
+		gpuProgram.setInputArg(13, 0);
+		gpuProgram.setInputArg(14, (byte)0);
+		gpuProgram.setInputArg(15, cellsY);
+		gpuProgram.setInputArg(16, cellsZ);
+		gpuProgram.setInputArg(17, useBrickedLayout ? (byte)1 : (byte)0);
 	}
 	
 	// Reset the cells to their default configuration
@@ -125,11 +337,11 @@ public class HeatsinkMain {
 		
 		/*
 		// Make a V-shape heat sink
-		for (int x = 0; x < cellsWide; x++) {
-			for (int y = 0; y < cellsWide; y++) {
-				for (int z = 0; z < cellsWide; z++) {
+		for (int x = 0; x < cellsX; x++) {
+			for (int y = 0; y < cellsY; y++) {
+				for (int z = 0; z < cellsZ; z++) {
 					final int i = idx(x, y, z);
-					cellEnabled[i]  = (x > cellsWide - y/2-cellsWide/3-4 && x < y/2+cellsWide/3+3) ? 0 : (byte)1;
+					cellEnabled[i]  = (x > cellsX - y/2-cellsX/3-4 && x < y/2+cellsX/3+3) ? 0 : (byte)1;
 				}
 			}
 		}
@@ -137,9 +349,9 @@ public class HeatsinkMain {
 		
 		//*
 		// Make a little box heat sink at the bottom
-		for (int x = 0; x < cellsWide; x++) {
-			for (int y = 0; y < cellsWide; y++) {
-				for (int z = 0; z < cellsWide; z++) {
+		for (int x = 0; x < cellsX; x++) {
+			for (int y = 0; y < cellsY; y++) {
+				for (int z = 0; z < cellsZ; z++) {
 					final int i = idx(x, y, z);
 					cellEnabled[i]  = (y < cellsWide*0.05 + 1) ? (byte)1 : 0;
 				}
@@ -149,9 +361,9 @@ public class HeatsinkMain {
 		
 		/*
 		// Make a thick base
-		for (int x = 0; x < cellsWide; x++) {
-			for (int y = 0; y < cellsWide; y++) {
-				for (int z = 0; z < cellsWide; z++) {
+		for (int x = 0; x < cellsX; x++) {
+			for (int y = 0; y < cellsY; y++) {
+				for (int z = 0; z < cellsZ; z++) {
 					final int i = idx(x, y, z);
 					cellEnabled[i]  = (y < cellsWide*0.2 + 1) ? (byte)1 : 0;
 				}
@@ -160,10 +372,10 @@ public class HeatsinkMain {
 		//*/
 		
 		/* Add a rectangle heat sink sticking up in the center
-		final int width = cellsWide-airPadding*2;
-		for (int x = airPadding; x < cellsWide-airPadding; x++) {
-			for (int y = 0; y < cellsWide*0.8-airPadding; y++) {
-				for (int z = (int)(cellsWide/2 - width*0.2); z < cellsWide/2 + width*0.2; z++) {
+		final int width = cellsZ-airPadding*2;
+		for (int x = airPadding; x < cellsX-airPadding; x++) {
+			for (int y = 0; y < cellsY*0.8-airPadding; y++) {
+				for (int z = (int)(cellsZ/2 - width*0.2); z < cellsZ/2 + width*0.2; z++) {
 					final int i = idx(x, y, z);
 					cellEnabled[i] = 1;
 				}
@@ -172,10 +384,10 @@ public class HeatsinkMain {
 		//*/
 		
 		//* Add a column sticking up in the center
-		final int width = cellsWide-airPadding*2;
-		for (int y = 0; y < cellsWide-airPadding; y++) {
-			for (int x = (int)(cellsWide/2 - width*0.22); x < cellsWide/2 + width*0.22; x++) {
-				for (int z = (int)(cellsWide/2 - width*0.22); z < cellsWide/2 + width*0.22; z++) {
+		final int width = Math.min(cellsX, cellsZ)-airPadding*2;
+		for (int y = 0; y < cellsY-airPadding; y++) {
+			for (int x = (int)(cellsX/2 - width*0.22); x < cellsX/2 + width*0.22; x++) {
+				for (int z = (int)(cellsZ/2 - width*0.22); z < cellsZ/2 + width*0.22; z++) {
 					final int i = idx(x, y, z);
 					cellEnabled[i] = 1;
 				}
@@ -184,10 +396,10 @@ public class HeatsinkMain {
 		//*/
 		
 		/* Add a triangle heat sink sticking up in the center
-		for (int x = airPadding; x < cellsWide-airPadding; x++) {
-			for (int y = 0; y < cellsWide-airPadding; y++) {
-				final double width = (cellsWide-airPadding*2)*0.25 - y/5;
-				for (int z = (int)(cellsWide/2 - width); z < cellsWide/2 + width; z++) {
+		for (int x = airPadding; x < cellsX-airPadding; x++) {
+			for (int y = 0; y < cellsY-airPadding; y++) {
+				final double width = (cellsZ-airPadding*2)*0.25 - y/5;
+				for (int z = (int)(cellsZ/2 - width); z < cellsZ/2 + width; z++) {
 					final int i = idx(x, y, z);
 					cellEnabled[i] = 1;
 				}
@@ -196,11 +408,11 @@ public class HeatsinkMain {
 		//*/
 		
 		/* Add horizontal fins in a Christmas tree shape
-		for (int y = 0; y < cellsWide*0.95-airPadding; y++) {
+		for (int y = 0; y < cellsY*0.95-airPadding; y++) {
 			if (y/4%2 == 0) {
 				final int width = y/3;
-				for (int z = airPadding+width; z < cellsWide-airPadding-width; z++) {
-					for (int x = airPadding; x < cellsWide-airPadding; x++) {
+				for (int z = airPadding+width; z < cellsZ-airPadding-width; z++) {
+					for (int x = airPadding; x < cellsX-airPadding; x++) {
 						final int i = idx(x, y, z);
 						cellEnabled[i] = 1;
 					}
@@ -211,9 +423,9 @@ public class HeatsinkMain {
 		
 		/* Make a classic simple finned shape heat sink
 		final int increment = cellsWide/18+1;
-		for (int x = airPadding; x < cellsWide-airPadding; x++) {
-			for (int y = 0; y < cellsWide-airPadding; y++) {
-				for (int z = airPadding; z < cellsWide-airPadding; z++) {
+		for (int x = airPadding; x < cellsX-airPadding; x++) {
+			for (int y = 0; y < cellsY-airPadding; y++) {
+				for (int z = airPadding; z < cellsZ-airPadding; z++) {
 					if ((z+3) % increment < increment/2) {
 						final int idx = idx(x, y, z);
 						cellEnabled[idx] = 1;
@@ -224,33 +436,69 @@ public class HeatsinkMain {
 		//*/
 		
 		// Clear out all cells that are part of the surrounding air
-		for (int x = 0; x < cellsWide; x++) {
-			for (int y = 0; y < cellsWide; y++) {
-				for (int z = 0; z < cellsWide; z++) {
+		for (int x = 0; x < cellsX; x++) {
+			for (int y = 0; y < cellsY; y++) {
+				for (int z = 0; z < cellsZ; z++) {
 					final int i = idx(x, y, z);
-
+					
 					cellHeat[i] = 0;
 					
 					// If this cell is part of the surrounding air, then clear it
-					if (x < airPadding || x >= cellsWide-airPadding ||
-							y >= cellsWide-airPadding ||
-							z < airPadding || z >= cellsWide-airPadding) {
+					if (x < airPadding || x >= cellsX-airPadding ||
+							y >= cellsY-airPadding ||
+							z < airPadding || z >= cellsZ-airPadding) {
 						
 						cellEnabled[i] = 0;
 					}
 				}
 			}
-			
+		
+		}
+		
+		//cellHeat[numCells-1] = 80000;
+		//cellHeat[idx(cellsX/2, 0, cellsZ/2)] = 9000;
+	}
+	
+	// Randomize a few times (no disconnected components are allowed)
+	static void mutateDesign(byte[] cells, Random random, boolean[][][] table) {
+		mutateDesign(cells, random, table, 0);
+	}
+	
+	// Mutate the design, avoiding recently rejected mutations and the one with the given ID (0 for none)
+	static void mutateDesign(byte[] cells, Random random, boolean[][][] table, long excludedId) {
+		if (useTabuList) {
+			TabuList.mutate(cells, random, table, excludedId);
+		} else {
+			makeMutation(cells, random, table);
+		}
+	}
+	
+	static void makeMutation(byte[] cells, Random random, boolean[][][] table) {
+		// Move a whole block instead, unless blocks are no longer accepted often enough (false for 3D)
+		if (useBlockMutations && BlockMutations.mutate(cells, random, table, true)) {
+			return;
 		}
 		
-		//cellHeat[cellsWide3-1] = 80000;
-		//cellHeat[idx(cellsWide/2, 0, cellsWide/2)] = 9000;
+		//evolveDesignExtruded(cells, random, table);
+		evolveDesignForged(cells, random, true);
+		//evolveDesign3D(cells, random, true);
+		
+		if (random.nextDouble() < 0.4) {
+			//evolveDesignExtruded(cells, random, table);
+			evolveDesignForged(cells, random, true);
+			//evolveDesign3D(cells, random, true);
+		}
+		if (random.nextDouble() < 0.1) {
+			//evolveDesignExtruded(cells, random, table);
+			evolveDesignForged(cells, random, true);
+			//evolveDesign3D(cells, random, true);
+		}
 	}
 	
 	// Slightly change the heat sink design by swapping any pair of cells on the horizontal cross section.
 	// This mimics the design of heat sinks by extrusion.
 	// This is done symmetrically
-	static void evolveDesignExtruded() {
+	static void evolveDesignExtruded(byte[] cells, Random random, boolean[][][] table) {
 		
 		// Array to represent the 4 adjacent cells (exclude x direction)
 		final byte[] axes = {
@@ -266,27 +514,27 @@ public class HeatsinkMain {
 		do {
 			
 			final int x = airPadding;
-			final int y = (int)(Math.random() * (cellsWide - airPadding - 1) + 1);
-			final int z = (int)(Math.random() * (cellsWide - airPadding*2) + airPadding);
+			final int y = (int)(random.nextDouble() * (cellsY - airPadding - 1) + 1);
+			final int z = (int)(random.nextDouble() * (cellsZ - airPadding*2) + airPadding);
 			
 			final int index1 = idx(x, y, z);
-			final int index2 = idx(x, y, cellsWide-z-1);
-			wasFirstCellEnabled = cellEnabled[index1];
+			final int index2 = idx(x, y, cellsZ-z-1);
+			wasFirstCellEnabled = cells[index1];
 			
 			// Determine if this is a cell on the metal-air boundary
 			for (int i = 0; i < 4 * 3; i += 3) {
 				final int idx2 = idx(x, y + axes[i+1], z + axes[i+2]);
-				if (cellEnabled[idx2] != wasFirstCellEnabled) {
+				if (cells[idx2] != wasFirstCellEnabled) {
 					// Invert the cells
-					cellEnabled[index1] ^= 1;
-					cellEnabled[index2] ^= 1;
-					extrudeDesignInX();
+					cells[index1] ^= 1;
+					cells[index2] ^= 1;
+					extrudeDesignInX(cells);
 					
 					// Check if it creates a disconnected component
-					if (hasDisconnectedComponents()) {
+					if (hasDisconnectedComponents(cells, table)) {
 						// Put the cells back
-						cellEnabled[index1] ^= 1;
-						cellEnabled[index2] ^= 1;
+						cells[index1] ^= 1;
+						cells[index2] ^= 1;
 					} else {
 						break outerLoop;
 					}
@@ -298,12 +546,12 @@ public class HeatsinkMain {
 		outerLoop:
 		do {
 			final int x = airPadding;
-			final int y = (int)(Math.random() * (cellsWide - airPadding - 1) + 1);
-			final int z = (int)(Math.random() * (cellsWide - airPadding*2) + airPadding);
+			final int y = (int)(random.nextDouble() * (cellsY - airPadding - 1) + 1);
+			final int z = (int)(random.nextDouble() * (cellsZ - airPadding*2) + airPadding);
 			
 			final int index1 = idx(x, y, z);
-			final int index2 = idx(x, y, cellsWide-z-1);
-			final byte isEnabled = cellEnabled[index1];
+			final int index2 = idx(x, y, cellsZ-z-1);
+			final byte isEnabled = cells[index1];
 			
 			// Skip this if both cells are part of the heat sink or part of the air.
 			// This maintains constant volume.
@@ -314,17 +562,17 @@ public class HeatsinkMain {
 			// Determine if this is a cell on the metal-air boundary
 			for (int i = 0; i < 4 * 3; i += 3) {
 				final int idx2 = idx(x, y + axes[i+1], z + axes[i+2]);
-				if (cellEnabled[idx2] != isEnabled) {
+				if (cells[idx2] != isEnabled) {
 					// Invert the cells
-					cellEnabled[index1] ^= 1;
-					cellEnabled[index2] ^= 1;
-					extrudeDesignInX();
+					cells[index1] ^= 1;
+					cells[index2] ^= 1;
+					extrudeDesignInX(cells);
 					
 					// Check if it creates a disconnected component
-					if (hasDisconnectedComponents()) {
+					if (hasDisconnectedComponents(cells, table)) {
 						// Put the cells back
-						cellEnabled[index1] ^= 1;
-						cellEnabled[index2] ^= 1;
+						cells[index1] ^= 1;
+						cells[index2] ^= 1;
 					} else {
 						break outerLoop;
 					}
@@ -332,14 +580,12 @@ public class HeatsinkMain {
 			}
 		} while (true);
 		
-		extrudeDesignInX();
+		extrudeDesignInX(cells);
 	}
 	
 	// Slightly change the heat sink design by swapping two columns of cells.
 	// This mimics the design of heat sinks by cold forging.
-	static void evolveDesignForged(boolean enforceSymmetry) {
-		
-		final int bottomMargin = (int)(cellsWide*0.05 + 1);
+	static void evolveDesignForged(byte[] cells, Random random, boolean enforceSymmetry) {
 		
 		// Array to represent the 4 adjacent cells (exclude y direction)
 		final byte[] axes = {
@@ -349,30 +595,37 @@ public class HeatsinkMain {
 				0, 0, -1
 		};
 		
+		// Choose from the mutation guide's predictions when there are some (only made with symmetry)
+		final boolean isGuided = enforceSymmetry && MutationGuide.isReady();
+		
 		// Find random cell on the surface of the heat sink and invert it
 		byte wasFirstCellEnabled;
 		outerLoop:
 		do {
 			final int x;
-			final int y = cellsWide - airPadding - 1;
+			final int y = cellsY - airPadding - 1;
 			final int z;
-			if (enforceSymmetry) {
-				x = (int)(Math.random() * (cellsWide/2 - airPadding) + airPadding);
-				z = (int)(Math.random() * (x - airPadding) + airPadding);
+			if (isGuided) {
+				final int column = MutationGuide.sampleColumn(cells, random, -1);
+				x = column / cellsZ;
+				z = column % cellsZ;
+			} else if (enforceSymmetry) {
+				x = (int)(random.nextDouble() * (cellsX/2 - airPadding) + airPadding);
+				z = (int)(random.nextDouble() * ((isSquareFootprint ? x : cellsZ/2) - airPadding) + airPadding);
 			} else {
-				x = (int)(Math.random() * (cellsWide - airPadding*2) + airPadding);
-				z = (int)(Math.random() * (cellsWide - airPadding*2) + airPadding);
+				x = (int)(random.nextDouble() * (cellsX - airPadding*2) + airPadding);
+				z = (int)(random.nextDouble() * (cellsZ - airPadding*2) + airPadding);
 			}
 			
 			final int index1 = idx(x, y, z);
-			wasFirstCellEnabled = cellEnabled[index1];
+			wasFirstCellEnabled = cells[index1];
 			
 			// Determine if this is a cell on the metal-air boundary
 			for (int i = 0; i < 4 * 3; i += 3) {
 				final int idx2 = idx(x + axes[i], y, z + axes[i+2]);
-				if (cellEnabled[idx2] != wasFirstCellEnabled) {
+				if (cells[idx2] != wasFirstCellEnabled) {
 					// Invert the cell
-					cellEnabled[index1] ^= 1;
+					cells[index1] ^= 1;
 					break outerLoop;
 				}
 			}
@@ -382,18 +635,22 @@ public class HeatsinkMain {
 		outerLoop:
 		do {
 			final int x;
-			final int y = cellsWide - airPadding - 1;
+			final int y = cellsY - airPadding - 1;
 			final int z;
-			if (enforceSymmetry) {
-				x = (int)(Math.random() * (cellsWide/2 - airPadding) + airPadding);
-				z = (int)(Math.random() * (x - airPadding) + airPadding);
+			if (isGuided) {
+				final int column = MutationGuide.sampleColumn(cells, random, wasFirstCellEnabled ^ 1);
+				x = column / cellsZ;
+				z = column % cellsZ;
+			} else if (enforceSymmetry) {
+				x = (int)(random.nextDouble() * (cellsX/2 - airPadding) + airPadding);
+				z = (int)(random.nextDouble() * ((isSquareFootprint ? x : cellsZ/2) - airPadding) + airPadding);
 			} else {
-				x = (int)(Math.random() * (cellsWide - airPadding*2) + airPadding);
-				z = (int)(Math.random() * (cellsWide - airPadding*2) + airPadding);
+				x = (int)(random.nextDouble() * (cellsX - airPadding*2) + airPadding);
+				z = (int)(random.nextDouble() * (cellsZ - airPadding*2) + airPadding);
 			}
 			
 			final int index1 = idx(x, y, z);
-			final byte isEnabled = cellEnabled[index1];
+			final byte isEnabled = cells[index1];
 			
 			// Skip this if both cells are part of the heat sink or part of the air.
 			// This maintains constant volume.
@@ -404,69 +661,79 @@ public class HeatsinkMain {
 			// Determine if this is a cell on the metal-air boundary
 			for (int i = 0; i < 4 * 3; i += 3) {
 				final int idx2 = idx(x + axes[i], y, z + axes[i+2]);
-				if (cellEnabled[idx2] != isEnabled) {
+				if (cells[idx2] != isEnabled) {
 					// Invert the cell
-					cellEnabled[index1] ^= 1;
+					cells[index1] ^= 1;
 					break outerLoop;
 				}
 			}
 		} while (true);
 		
-		// If we are enforcing symmetry, then reflect whole design 8x.
+		// If we are enforcing symmetry, then reflect the top layer 8x
 		if (enforceSymmetry) {
-			final int y = cellsWide - airPadding - 1;
-			for (int x = 0; x < cellsWide/2; x++) {
-				for (int z = 0; z < x; z++) {
+			reflectDesign(cells, cellsY - airPadding - 1, cellsY - airPadding);
+		}
+		
+		extrudeDesignInY(cells, forgedBottomMargin);
+	}
+	
+	// Reflect the layers from minY up to maxY (exclusive) 8x, from the part with x < cellsX/2 and z < x.
+	// Designs can only be reflected across the diagonal if the footprint is square, otherwise 4x
+	//   (from the part with z < cellsZ/2).
+	static void reflectDesign(byte[] cells, int minY, int maxY) {
+		for (int y = minY; y < maxY; y++) {
+			for (int x = 0; x < cellsX/2; x++) {
+				for (int z = 0; z < (isSquareFootprint ? x : cellsZ/2); z++) {
 					final int index1 = idx(x, y, z);
-					final int index2 = idx(cellsWide - x - 1, y, z);
-					final int index3 = idx(x, y, cellsWide - z - 1);
-					final int index4 = idx(cellsWide - x - 1, y, cellsWide - z - 1);
-					final int index5 = idx(z, y, x);
-					final int index6 = idx(z, y, cellsWide - x - 1);
-					final int index7 = idx(cellsWide - z - 1, y, x);
-					final int index8 = idx(cellsWide - z - 1, y, cellsWide - x - 1);
-					cellEnabled[index2] = cellEnabled[index1];
-					cellEnabled[index3] = cellEnabled[index1];
-					cellEnabled[index4] = cellEnabled[index1];
-					cellEnabled[index5] = cellEnabled[index1];
-					cellEnabled[index6] = cellEnabled[index1];
-					cellEnabled[index7] = cellEnabled[index1];
-					cellEnabled[index8] = cellEnabled[index1];
+					final int index2 = idx(cellsX - x - 1, y, z);
+					final int index3 = idx(x, y, cellsZ - z - 1);
+					final int index4 = idx(cellsX - x - 1, y, cellsZ - z - 1);
+					cells[index2] = cells[index1];
+					cells[index3] = cells[index1];
+					cells[index4] = cells[index1];
+					if (isSquareFootprint) {
+						final int index5 = idx(z, y, x);
+						final int index6 = idx(z, y, cellsZ - x - 1);
+						final int index7 = idx(cellsX - z - 1, y, x);
+						final int index8 = idx(cellsX - z - 1, y, cellsZ - x - 1);
+						cells[index5] = cells[index1];
+						cells[index6] = cells[index1];
+						cells[index7] = cells[index1];
+						cells[index8] = cells[index1];
+					}
 				}
 			}
 		}
-		
-		extrudeDesignInY(bottomMargin);
 	}
 	
 	// Extrude the whole design to have a uniform cross-section in the y-direction,
 	//   excluding the bottom few layers
-	static void extrudeDesignInY(int bottomMargin) {
+	static void extrudeDesignInY(byte[] cells, int bottomMargin) {
 		
 		// Extrude the whole design in the x direction
-		for (int z = airPadding; z < cellsWide - airPadding; z++) {
-			for (int x = airPadding; x < cellsWide - airPadding; x++) {
+		for (int z = airPadding; z < cellsZ - airPadding; z++) {
+			for (int x = airPadding; x < cellsX - airPadding; x++) {
 				// Copy the cell states along the y axis
-				final byte state = cellEnabled[idx(x, cellsWide-airPadding-1, z)];
-				for (int y = bottomMargin; y < cellsWide-airPadding-1; y++) {
+				final byte state = cells[idx(x, cellsY-airPadding-1, z)];
+				for (int y = bottomMargin; y < cellsY-airPadding-1; y++) {
 					final int i = idx(x, y, z);
-					cellEnabled[i] = state;
+					cells[i] = state;
 				}
 			}
 		}
 	}
 	
 	// Extrude the whole design to have a uniform cross-section in the x-direction
-	static void extrudeDesignInX() {
+	static void extrudeDesignInX(byte[] cells) {
 		
 		// Extrude the whole design in the x direction
-		for (int z = airPadding; z < cellsWide - airPadding; z++) {
-			for (int y = 0; y < cellsWide-airPadding; y++) {
+		for (int z = airPadding; z < cellsZ - airPadding; z++) {
+			for (int y = 0; y < cellsY-airPadding; y++) {
 				// Copy the cell states along the x axis
-				final byte state = cellEnabled[idx(airPadding, y, z)];
-				for (int x = airPadding+1; x < cellsWide-airPadding; x++) {
+				final byte state = cells[idx(airPadding, y, z)];
+				for (int x = airPadding+1; x < cellsX-airPadding; x++) {
 					final int i = idx(x, y, z);
-					cellEnabled[i] = state;
+					cells[i] = state;
 				}
 			}
 		}
@@ -474,7 +741,7 @@ public class HeatsinkMain {
 	
 	// Slightly change the heat sink design by swapping any pair of cells.
 	// Then extrude the design into the X dimension to create a uniform cross section.
-	static void evolveDesign3D(boolean enforceSymmetry) {
+	static void evolveDesign3D(byte[] cells, Random random, boolean enforceSymmetry) {
 		{
 			// Array to represent the 6 adjacent cells
 			final byte[] axes = {
@@ -486,6 +753,9 @@ public class HeatsinkMain {
 					0, 0, -1
 			};
 			
+			// Choose from the mutation guide's predictions when there are some (only made with symmetry)
+			final boolean isGuided = enforceSymmetry && MutationGuide.hasCellPredictions();
+			
 			// Find random cell on the surface of the heat sink and invert it
 			int index1 = -1;
 			outerLoop:
@@ -493,40 +763,45 @@ public class HeatsinkMain {
 				final int x;
 				final int y;
 				final int z;
-				if (enforceSymmetry) {
-					x = (int)(Math.random() * (cellsWide/2 - airPadding) + airPadding);
-					y = (int)(Math.random() * (cellsWide - airPadding));
-					z = (int)(Math.random() * (x - airPadding) + airPadding);
+				final int guidedCell = isGuided ? MutationGuide.sampleCell(cells, random, -1) : -1;
+				if (guidedCell >= 0) {
+					x = guidedCell / (cellsY * cellsZ);
+					y = guidedCell / cellsZ % cellsY;
+					z = guidedCell % cellsZ;
+				} else if (enforceSymmetry) {
+					x = (int)(random.nextDouble() * (cellsX/2 - airPadding) + airPadding);
+					y = (int)(random.nextDouble() * (cellsY - airPadding));
+					z = (int)(random.nextDouble() * ((isSquareFootprint ? x : cellsZ/2) - airPadding) + airPadding);
 				} else {
-					x = (int)(Math.random() * (cellsWide - airPadding*2) + airPadding);
-					y = (int)(Math.random() * (cellsWide - airPadding));
-					z = (int)(Math.random() * (cellsWide - airPadding*2) + airPadding);
+					x = (int)(random.nextDouble() * (cellsX - airPadding*2) + airPadding);
+					y = (int)(random.nextDouble() * (cellsY - airPadding));
+					z = (int)(random.nextDouble() * (cellsZ - airPadding*2) + airPadding);
 				}
 				index1 = idx(x, y, z);
 				
-				final byte isEnabled = cellEnabled[index1];
+				final byte isEnabled = cells[index1];
 				
 				// If this cell is part of the surrounding air, then just skip it
-				if (x < airPadding || x >= cellsWide-airPadding ||
-						y >= cellsWide-airPadding ||
-						z < airPadding || z >= cellsWide-airPadding) {
+				if (x < airPadding || x >= cellsX-airPadding ||
+						y >= cellsY-airPadding ||
+						z < airPadding || z >= cellsZ-airPadding) {
 					continue;
 				}
 				
 				// Skip if this cell is within the heat source
-				if (y == 0 && x > airPadding*1.3 && x < cellsWide - airPadding*1.3 - 1 &&
-						z > airPadding*1.3 && z < cellsWide - airPadding*1.3 - 1) {
+				if (y == 0 && x > airPadding*1.3 && x < cellsX - airPadding*1.3 - 1 &&
+						z > airPadding*1.3 && z < cellsZ - airPadding*1.3 - 1) {
 					continue;
 				}
 				
 				// Determine if this is a cell on the metal-air boundary
 				for (int i = 0; i < 6 * 3; i += 3) {
-					if (x + axes[i+0] >= 0 && x + axes[i+0] < cellsWide &&
-							y + axes[i+1] >= 0 && y + axes[i+1] < cellsWide &&
-							z + axes[i+2] >= 0 && z + axes[i+2] < cellsWide) {
+					if (x + axes[i+0] >= 0 && x + axes[i+0] < cellsX &&
+							y + axes[i+1] >= 0 && y + axes[i+1] < cellsY &&
+							z + axes[i+2] >= 0 && z + axes[i+2] < cellsZ) {
 						
 						final int idx2 = idx(x + axes[i+0], y + axes[i+1], z + axes[i+2]);
-						if (cellEnabled[idx2] != isEnabled) {
+						if (cells[idx2] != isEnabled) {
 							break outerLoop;
 						}
 					}
@@ -540,127 +815,121 @@ public class HeatsinkMain {
 				final int x;
 				final int y;
 				final int z;
-				if (enforceSymmetry) {
-					x = (int)(Math.random() * (cellsWide/2 - airPadding) + airPadding);
-					y = (int)(Math.random() * (cellsWide - airPadding));
-					z = (int)(Math.random() * (x - airPadding) + airPadding);
+				final int guidedCell = isGuided ? MutationGuide.sampleCell(cells, random, cells[index1] ^ 1) : -1;
+				if (guidedCell >= 0) {
+					x = guidedCell / (cellsY * cellsZ);
+					y = guidedCell / cellsZ % cellsY;
+					z = guidedCell % cellsZ;
+				} else if (enforceSymmetry) {
+					x = (int)(random.nextDouble() * (cellsX/2 - airPadding) + airPadding);
+					y = (int)(random.nextDouble() * (cellsY - airPadding));
+					z = (int)(random.nextDouble() * ((isSquareFootprint ? x : cellsZ/2) - airPadding) + airPadding);
 				} else {
-					x = (int)(Math.random() * (cellsWide - airPadding*2) + airPadding);
-					y = (int)(Math.random() * (cellsWide - airPadding));
-					z = (int)(Math.random() * (cellsWide - airPadding*2) + airPadding);
+					x = (int)(random.nextDouble() * (cellsX - airPadding*2) + airPadding);
+					y = (int)(random.nextDouble() * (cellsY - airPadding));
+					z = (int)(random.nextDouble() * (cellsZ - airPadding*2) + airPadding);
 				}
 				index2 = idx(x, y, z);
 				
 				// Skip this if both cells are part of the heat sink or part of the air.
 				// This maintains constant volume.
-				if (cellEnabled[index2] == cellEnabled[index1]) {
+				if (cells[index2] == cells[index1]) {
 					continue;
 				}
 				
-				final byte isEnabled = cellEnabled[index2];
+				final byte isEnabled = cells[index2];
 				
 				// If this cell is part of the surrounding air, then just skip it
-				if (x < airPadding || x >= cellsWide-airPadding ||
-						y >= cellsWide-airPadding ||
-						z < airPadding || z >= cellsWide-airPadding) {
+				if (x < airPadding || x >= cellsX-airPadding ||
+						y >= cellsY-airPadding ||
+						z < airPadding || z >= cellsZ-airPadding) {
 					continue;
 				}
 				
 				// Skip if this cell is within the heat source
-				if (y == 0 && x > airPadding*1.3 && x < cellsWide - airPadding*1.3 - 1 &&
-						z > airPadding*1.3 && z < cellsWide - airPadding*1.3 - 1) {
+				if (y == 0 && x > airPadding*1.3 && x < cellsX - airPadding*1.3 - 1 &&
+						z > airPadding*1.3 && z < cellsZ - airPadding*1.3 - 1) {
 					continue;
 				}
 				
 				// Determine if this is a cell on the metal-air boundary
 				for (int i = 0; i < 6 * 3; i += 3) {
-					if (x + axes[i+0] >= 0 && x + axes[i+0] < cellsWide &&
-							y + axes[i+1] >= 0 && y + axes[i+1] < cellsWide &&
-							z + axes[i+2] >= 0 && z + axes[i+2] < cellsWide) {
+					if (x + axes[i+0] >= 0 && x + axes[i+0] < cellsX &&
+							y + axes[i+1] >= 0 && y + axes[i+1] < cellsY &&
+							z + axes[i+2] >= 0 && z + axes[i+2] < cellsZ) {
 						
 						final int idx2 = idx(x + axes[i+0], y + axes[i+1], z + axes[i+2]);
-						if (cellEnabled[idx2] != isEnabled) {
+						if (cells[idx2] != isEnabled) {
 							break outerLoop;
 						}
 					}
 				}
 			} while (true);
 			
-			cellEnabled[index1] ^= 1;
-			cellEnabled[index2] ^= 1;
+			cells[index1] ^= 1;
+			cells[index2] ^= 1;
 		}
-
-		// If we are enforcing symmetry, then reflect whole design 8x.
+		
+		// If we are enforcing symmetry, then reflect whole design 8x (4x if the footprint isn't square).
 		if (enforceSymmetry) {
-			for (int y = 0; y < cellsWide - airPadding; y++) {
-				for (int x = 0; x < cellsWide/2; x++) {
-					for (int z = 0; z < x; z++) {
-						final int index1 = idx(x, y, z);
-						final int index2 = idx(cellsWide - x - 1, y, z);
-						final int index3 = idx(x, y, cellsWide - z - 1);
-						final int index4 = idx(cellsWide - x - 1, y, cellsWide - z - 1);
-						final int index5 = idx(z, y, x);
-						final int index6 = idx(z, y, cellsWide - x - 1);
-						final int index7 = idx(cellsWide - z - 1, y, x);
-						final int index8 = idx(cellsWide - z - 1, y, cellsWide - x - 1);
-						cellEnabled[index2] = cellEnabled[index1];
-						cellEnabled[index3] = cellEnabled[index1];
-						cellEnabled[index4] = cellEnabled[index1];
-						cellEnabled[index5] = cellEnabled[index1];
-						cellEnabled[index6] = cellEnabled[index1];
-						cellEnabled[index7] = cellEnabled[index1];
-						cellEnabled[index8] = cellEnabled[index1];
-					}
-				}
-			}
+			reflectDesign(cells, 0, cellsY - airPadding);
+		}
+	}
+	
+	// Update the predictions that guide the mutations, for a newly accepted design and its heat
+	static void updateMutationGuide(byte[] cells, float[] heat) {
+		if (useAdjointGuidance) {
+			MutationGuide.updateFromAdjoint(cells, heat);
+		} else if (useHeatFluxGuidance) {
+			MutationGuide.updateFromHeatFlux(cells, heat);
 		}
 	}
 	
 	// Check the heat sink for disconnected components
-	static boolean hasDisconnectedComponents() {
+	static boolean hasDisconnectedComponents(byte[] cells, boolean[][][] table) {
 		
-		for (int x = 0; x < cellsWide; x++) {
-			for (int y = 0; y < cellsWide; y++) {
-				for (int z = 0; z < cellsWide; z++) {
-					disconnectedComponentTable[x][y][z] = false;
+		for (int x = 0; x < cellsX; x++) {
+			for (int y = 0; y < cellsY; y++) {
+				for (int z = 0; z < cellsZ; z++) {
+					table[x][y][z] = false;
 				}
 			}
 		}
 		
 		// Starting cell at the bottom center
-		disconnectedComponentTable[cellsWide/2][0][cellsWide/2] = true;
+		table[cellsX/2][0][cellsZ/2] = true;
 		
 		// Use breadth-first search to find disconnected components
 		boolean foundNewCell = false;
 		do {
 			foundNewCell = false;
-			for (int x = airPadding; x < cellsWide-airPadding; x++) {
-				for (int y = 0; y < cellsWide-airPadding; y++) {
-					for (int z = airPadding; z < cellsWide-airPadding; z++) {
-						if (cellEnabled[idx(x, y, z)] == 1 && disconnectedComponentTable[x][y][z]) {
+			for (int x = airPadding; x < cellsX-airPadding; x++) {
+				for (int y = 0; y < cellsY-airPadding; y++) {
+					for (int z = airPadding; z < cellsZ-airPadding; z++) {
+						if (cells[idx(x, y, z)] == 1 && table[x][y][z]) {
 							// Mark the adjacent cells as being searched
-							if (cellEnabled[idx(x+1, y, z)] == 1 && !disconnectedComponentTable[x+1][y][z]) {
-								disconnectedComponentTable[x+1][y][z] = true;
+							if (cells[idx(x+1, y, z)] == 1 && !table[x+1][y][z]) {
+								table[x+1][y][z] = true;
 								foundNewCell = true;
 							}
-							if (cellEnabled[idx(x, y+1, z)] == 1 && !disconnectedComponentTable[x][y+1][z]) {
-								disconnectedComponentTable[x][y+1][z] = true;
+							if (cells[idx(x, y+1, z)] == 1 && !table[x][y+1][z]) {
+								table[x][y+1][z] = true;
 								foundNewCell = true;
 							}
-							if (cellEnabled[idx(x, y, z+1)] == 1 && !disconnectedComponentTable[x][y][z+1]) {
-								disconnectedComponentTable[x][y][z+1] = true;
+							if (cells[idx(x, y, z+1)] == 1 && !table[x][y][z+1]) {
+								table[x][y][z+1] = true;
 								foundNewCell = true;
 							}
-							if (cellEnabled[idx(x-1, y, z)] == 1 && !disconnectedComponentTable[x-1][y][z]) {
-								disconnectedComponentTable[x-1][y][z] = true;
+							if (cells[idx(x-1, y, z)] == 1 && !table[x-1][y][z]) {
+								table[x-1][y][z] = true;
 								foundNewCell = true;
 							}
-							if (cellEnabled[idx(x, y-1, z)] == 1 && !disconnectedComponentTable[x][y-1][z] && y > 0) {
-								disconnectedComponentTable[x][y-1][z] = true;
+							if (cells[idx(x, y-1, z)] == 1 && !table[x][y-1][z] && y > 0) {
+								table[x][y-1][z] = true;
 								foundNewCell = true;
 							}
-							if (cellEnabled[idx(x, y, z-1)] == 1 && !disconnectedComponentTable[x][y][z-1]) {
-								disconnectedComponentTable[x][y][z-1] = true;
+							if (cells[idx(x, y, z-1)] == 1 && !table[x][y][z-1]) {
+								table[x][y][z-1] = true;
 								foundNewCell = true;
 							}
 						}
@@ -670,11 +939,11 @@ public class HeatsinkMain {
 		} while (foundNewCell);
 		
 		// Now check if there are any disconnected components left
-		for (int x = airPadding; x < cellsWide-airPadding; x++) {
-			for (int y = 0; y < cellsWide-airPadding; y++) {
-				for (int z = airPadding; z < cellsWide-airPadding; z++) {
+		for (int x = airPadding; x < cellsX-airPadding; x++) {
+			for (int y = 0; y < cellsY-airPadding; y++) {
+				for (int z = airPadding; z < cellsZ-airPadding; z++) {
 					// If this cell has not been reached, then it must be disconnected
-					if (cellEnabled[idx(x, y, z)] == 1 && !disconnectedComponentTable[x][y][z]) {
+					if (cells[idx(x, y, z)] == 1 && !table[x][y][z]) {
 						return true;
 					}
 				}
@@ -687,16 +956,16 @@ public class HeatsinkMain {
 	
 	// Reset the cells to a configuration based on the given iteration
 	static void setDesignIteration(int iteration) {
-		for (int x = 0; x < cellsWide; x++) {
-			for (int y = 0; y < cellsWide; y++) {
-				for (int z = 0; z < cellsWide; z++) {
+		for (int x = 0; x < cellsX; x++) {
+			for (int y = 0; y < cellsY; y++) {
+				for (int z = 0; z < cellsZ; z++) {
 					final int i = idx(x, y, z);
 					
 					// If this is an inner cell
 					cellEnabled[i] =
-							(x >= airPadding && x < cellsWide-airPadding &&
-							y < cellsWide-airPadding &&
-							z >= airPadding && z < cellsWide-airPadding) ? (byte)1 : 0;
+							(x >= airPadding && x < cellsX-airPadding &&
+							y < cellsY-airPadding &&
+							z >= airPadding && z < cellsZ-airPadding) ? (byte)1 : 0;
 					cellHeat[i] = 0;
 				}
 			}
@@ -704,9 +973,9 @@ public class HeatsinkMain {
 		
 		//*
 		// Make a classic simple finned shape heat sink
-		for (int x = 0; x < cellsWide; x++) {
-			for (int y = 3; y < cellsWide; y++) {
-				for (int z = 0; z < cellsWide; z++) {
+		for (int x = 0; x < cellsX; x++) {
+			for (int y = 3; y < cellsY; y++) {
+				for (int z = 0; z < cellsZ; z++) {
 					if (x % iteration != 0) {
 						final int idx = idx(x, y, z);
 						cellEnabled[idx] = 0;
@@ -716,12 +985,18 @@ public class HeatsinkMain {
 		}
 		//*/
 		
-		//cellHeat[cellsWide3-1] = 80000;
-		//cellHeat[idx(cellsWide/2, 0, cellsWide/2)] = 2000;
+		//cellHeat[numCells-1] = 80000;
+		//cellHeat[idx(cellsX/2, 0, cellsZ/2)] = 2000;
 	}
 	
 	// Calculate long-term information about this heat sink for later
 	static void preprocessDesign() {
+		computeBoundaryCells(cellEnabled, isCellOnBoundary);
+		uploadDesignToGPU();
+	}
+	
+	// Determine which cells of the given design are on the metal-air boundary
+	static void computeBoundaryCells(byte[] cells, byte[] boundary) {
 		
 		// Array to represent the 6 adjacent cells
 		final byte[] axes = {
@@ -735,39 +1010,41 @@ public class HeatsinkMain {
 		
 		// Determine which cells actually need to be rendered (are not covered on all sides)
 		// Determine which cells of the heat sink are on the metal-air boundary.
-		for (int x = 0; x < cellsWide; x++) {
-			for (int y = 0; y < cellsWide; y++) {
+		for (int x = 0; x < cellsX; x++) {
+			for (int y = 0; y < cellsY; y++) {
 				toNextCell:
-				for (int z = 0; z < cellsWide; z++) {
+				for (int z = 0; z < cellsZ; z++) {
 					final int idx = idx(x, y, z);
 					
-					if (cellEnabled[idx] == 0) {
-						isCellOnBoundary[idx] = 0;
+					if (cells[idx] == 0) {
+						boundary[idx] = 0;
 						continue;
 					}
 					
 					// Compute the fraction of sides that are covered with another enabled cell
-					isCellOnBoundary[idx] = 0;
+					boundary[idx] = 0;
 					for (int i = 0; i < 6 * 3; i += 3) {
-						if (x + axes[i+0] >= 0 && x + axes[i+0] < cellsWide &&
-								y + axes[i+1] >= 0 && y + axes[i+1] < cellsWide &&
-								z + axes[i+2] >= 0 && z + axes[i+2] < cellsWide) {
+						if (x + axes[i+0] >= 0 && x + axes[i+0] < cellsX &&
+								y + axes[i+1] >= 0 && y + axes[i+1] < cellsY &&
+								z + axes[i+2] >= 0 && z + axes[i+2] < cellsZ) {
 							
 							final int idx2 = idx(x + axes[i+0], y + axes[i+1], z + axes[i+2]);
-							if (cellEnabled[idx2] == 0) {
-								isCellOnBoundary[idx] = 1;
+							if (cells[idx2] == 0) {
+								boundary[idx] = 1;
 								continue toNextCell;
 							}
 						} else {
-							isCellOnBoundary[idx] = 1;
+							boundary[idx] = 1;
 							continue toNextCell;
 						}
 					}
 				}
 			}
 		}
-		
-		// Set the constants that don't chance for a certain heat sink design
+	}
+	
+	// Set the constants that don't chance for a certain heat sink design
+	static void uploadDesignToGPU() {
 		if (useGPU) {
 			gpuProgram.setInputArg(4, cellEnabled);
 			gpuProgram.setInOutArg(5, cellHeat);
@@ -778,24 +1055,51 @@ public class HeatsinkMain {
 		}
 	}
 	
-	// Add heat to the heat sink from the bottom
-	static void addHeat() {
-		for (int x = (int)(airPadding*1.3f); x < cellsWide-airPadding*1.3f; x++) {
-			for (int z = (int)(airPadding*1.3f); z < cellsWide-airPadding*1.3f; z++) {
-				cellHeat[idx(x, 0, z)] += heatSourceHeatPerCell;
+	// Add heat to the heat sink from the bottom (the step is used for rounding compact heat)
+	static void addHeat(int step) {
+		for (int x = (int)(airPadding*1.3f); x < cellsX-airPadding*1.3f; x++) {
+			for (int z = (int)(airPadding*1.3f); z < cellsZ-airPadding*1.3f; z++) {
+				if (compactHeatStorage) {
+					final int idx = idx(x, 0, z);
+					setCompactHeat(idx, getStoredHeat(idx) + heatSourceHeatPerCell, step*3);
+				} else {
+					cellHeat[idx(x, 0, z)] += heatSourceHeatPerCell;
+				}
 			}
 		}
 	}
 	
+	// Heat of a cell as stored by the CPU simulation
+	static float getStoredHeat(int i) {
+		return compactHeatStorage ? (compactHeat[i] & 0xFFFF) * compactHeatQuantum : cellHeat[i];
+	}
+	
+	// Store a cell's heat in 16-bit fixed point.  It is rounded up or down at random, in proportion to
+	//   how close it is to each, so that changes smaller than the quantum aren't lost on average.
+	// The noise is a hash of the cell and the step, so that runs remain repeatable.
+	static void setCompactHeat(int i, float heat, int step) {
+		int hash = i * 0x9E3779B1 + step * 0x85EBCA6B;
+		hash ^= hash >>> 16;
+		hash *= 0x7FEB352D;
+		hash ^= hash >>> 15;
+		final float noise = (hash >>> 8) * (1f / (1 << 24));
+		final int value = (int)(heat * (1 / compactHeatQuantum) + noise);
+		compactHeat[i] = (short)Math.max(0, Math.min(65535, value));
+	}
+	
 	// Score the heat sink based on the total temperature of the base
 	static double scoreHeatsink() {
+		return scoreHeatsink(cellHeat);
+	}
+	
+	static double scoreHeatsink(float[] heat) {
 		
 		// Add up the heat over the same area that it is being heated.
 		double totalHeat = 0;
 		int count = 0;
-		for (int x = (int)(airPadding*1.3f)+2; x < cellsWide-airPadding*1.3f-2; x++) {
-			for (int z = (int)(airPadding*1.3f)+2; z < cellsWide-airPadding*1.3f-2; z++) {
-				totalHeat += cellHeat[idx(x, 0, z)];
+		for (int x = (int)(airPadding*1.3f)+2; x < cellsX-airPadding*1.3f-2; x++) {
+			for (int z = (int)(airPadding*1.3f)+2; z < cellsZ-airPadding*1.3f-2; z++) {
+				totalHeat += heat[idx(x, 0, z)];
 				count++;
 			}
 		}
@@ -803,8 +1107,157 @@ public class HeatsinkMain {
 		return totalHeat / count;
 	}
 	
-	// Run the thermal simulation
-	static double runSimulation(boolean isFirstIteration) {
+	// Whether this cell gets heat directly from the artificial heat source
+	static boolean isHeatSourceCell(int x, int y, int z) {
+		return y == 0 && x > airPadding*1.3f-1 && x < cellsX-airPadding*1.3f &&
+				z > airPadding*1.3f-1 && z < cellsZ-airPadding*1.3f;
+	}
+	
+	// The heat source that isHeatSourceCell() and scoreHeatsink() use
+	static LoadCase getStandardLoadCase() {
+		return new LoadCase((int)Math.floor(airPadding*1.3f-1) + 1, (int)Math.ceil(cellsX-airPadding*1.3f),
+				(int)Math.floor(airPadding*1.3f-1) + 1, (int)Math.ceil(cellsZ-airPadding*1.3f), heatSourceHeatPerCell);
+	}
+	
+	// The load cases used with useLoadCases: the standard heat source, the same power through the
+	//   middle half of its width and depth, and a quarter of the power through one corner quarter
+	static LoadCase[] getLoadCases() {
+		final LoadCase standard = getStandardLoadCase();
+		final int width = standard.maxX - standard.minX;
+		final int depth = standard.maxZ - standard.minZ;
+		return new LoadCase[] {
+				standard,
+				new LoadCase(standard.minX + width/4, standard.minX + width/4 + width/2,
+						standard.minZ + depth/4, standard.minZ + depth/4 + depth/2,
+						heatSourceHeatPerCell * width * depth / ((width/2) * (depth/2))),
+				new LoadCase(standard.minX, standard.minX + width/2, standard.minZ, standard.minZ + depth/2,
+						heatSourceHeatPerCell)
+		};
+	}
+	
+	// Conductance between two adjacent cells at equilibrium.
+	// Air and boundary cells are only updated every few iterations, so over a full cycle
+	//   their effective conductance is divided by the number of skipped iterations.
+	static float getConductance(byte cell1, byte cell2) {
+		if (cell1 != cell2) {
+			return conductivity / boundaryIterationSkips;
+		} else if (cell1 == 0) {
+			return conductivity / airIterationSkips;
+		}
+		return conductivity;
+	}
+	
+	// Number of padding cells on each side (except the bottom) that are not simulated
+	static int getSimulationMargin() {
+		return farFieldBoundary ? Math.max(0, airPadding - farFieldPadding) : 0;
+	}
+	
+	// Fraction of the border conductance used with the far-field border.
+	// The bottom border is held at 0 degrees, so far from the heat sink the heat falls off like
+	//   a dipole above a cold plane, heat ~ cos(angle) / r^2.
+	// A ghost cell one step further out then has heat * r^2 / (r + 1)^2, so the flow through the
+	//   border is conductivity * heat * (2r + 1) / (r + 1)^2.  This lets heat leave as if the air continued.
+	static float getFarFieldFactor(int x, int y, int z) {
+		final float dx = x - (cellsX - 1) * 0.5f;
+		final float dz = z - (cellsZ - 1) * 0.5f;
+		final float r = (float)Math.sqrt(dx*dx + y*y + dz*dz);
+		return (2*r + 1) / ((r + 1) * (r + 1));
+	}
+	
+	// Conductance from a cell on the edge of the simulation to the ambient air outside
+	static float getBorderConductance(int x, int y, int z) {
+		return isHeatSourceCell(x, y, z) ? 0 : conductivity / airIterationSkips;
+	}
+	
+	// Score the candidate design, by simulating it unless the coarse-grid surrogate predicts that it
+	//   can't beat the incumbent, in which case it is rejected without a simulation.
+	// The surrogate follows the incumbent by the same rule that the callers accept candidates by.
+	static double evaluateCandidate(boolean isFirstIteration, double incumbentScore) {
+		lastCandidateWasScreened = false;
+		if (!useSurrogateScreening) {
+			return runSimulation(isFirstIteration, incumbentScore);
+		}
+		if (isFirstIteration) {
+			final double score = runSimulation(true, incumbentScore);
+			CoarseSurrogate.setIncumbent(cellEnabled);
+			return score;
+		}
+		
+		if (!CoarseSurrogate.shouldSimulate(cellEnabled)) {
+			lastSimulationIterations = 0;
+			lastSimulationWasRaced = false;
+			lastCandidateWasScreened = true;
+			return Double.MAX_VALUE;
+		}
+		final double score = runSimulation(false, incumbentScore);
+		CoarseSurrogate.recordScore(score, incumbentScore);
+		if (score <= incumbentScore) {
+			CoarseSurrogate.acceptCandidate();
+		}
+		return score;
+	}
+	
+	// Run the thermal simulation.
+	// When racing is enabled, the simulation stops as soon as the base heat is bound to end up
+	//   worse than the incumbent score, and that bound is returned instead of the equilibrium.
+	static double runSimulation(boolean isFirstIteration, double incumbentScore) {
+		
+		if (useADISolver) {
+			final double score = ADISolver.solve(cellEnabled, cellHeat, isFirstIteration ? 2e-7 : 4e-7);
+			lastSimulationIterations = ADISolver.lastSweeps;
+			lastSimulationWasRaced = false;
+			return score;
+		}
+		if (useAsyncSolver) {
+			final double score = AsyncRelaxationSolver.solve(cellEnabled, cellHeat, isFirstIteration ? 2e-7 : 4e-7);
+			lastSimulationIterations = AsyncRelaxationSolver.lastSweeps;
+			lastSimulationWasRaced = false;
+			return score;
+		}
+		if (useMetalOnlySolver) {
+			final double score = MetalOnlySolver.solve(cellEnabled, cellHeat, convectionCoefficient, 1e-6);
+			lastSimulationIterations = MetalOnlySolver.lastIterations;
+			lastSimulationWasRaced = false;
+			return score;
+		}
+		if (useLoadCases) {
+			final double[] scores = MultiLoadSolver.solve(cellEnabled, getLoadCases(), cellHeat, 1e-6);
+			lastSimulationIterations = MultiLoadSolver.lastIterations;
+			lastSimulationWasRaced = false;
+			double totalScore = 0;
+			for (double score : scores) {
+				totalScore += score;
+			}
+			return totalScore / scores.length;
+		}
+		if (useOctreeSolver) {
+			final double score = OctreeSolver.solve(cellEnabled, cellHeat, 1e-6);
+			lastSimulationIterations = OctreeSolver.lastIterations;
+			lastSimulationWasRaced = false;
+			return score;
+		}
+		if (useLocalTimeStepping) {
+			final double score = LocalTimeStepSolver.solve(cellEnabled, cellHeat, isFirstIteration ? 2e-7 : 4e-7);
+			lastSimulationIterations = LocalTimeStepSolver.lastTicks;
+			lastSimulationWasRaced = false;
+			return score;
+		}
+		
+		// Cells outside the simulated region keep their heat, and must not keep changing
+		final int margin = getSimulationMargin();
+		if (margin > 0) {
+			Arrays.fill(cellDeltaHeat, 0);
+		}
+		if (compactHeatStorage && !useGPU) {
+			for (int i = 0; i < numCells; i++) {
+				setCompactHeat(i, cellHeat[i], -1);
+			}
+		}
+		if (useGPU) {
+			gpuProgram.setInputArg(13, margin);
+			gpuProgram.setInputArg(14, farFieldBoundary ? (byte)1 : (byte)0);
+			gpuProgram.setIterations(cellsX - margin*2, cellsY - margin, cellsZ - margin*2);
+		}
 		
 		final int minimumIterations = 10 * cellsWide;
 		int iterationsSinceReport = 0;
@@ -812,6 +1265,39 @@ public class HeatsinkMain {
 		long lastReportTime = System.currentTimeMillis();
 		double previousBaseHeat = -999;
 		
+		// The last two changes in base heat, newest first
+		double baseHeatChange0 = 0;
+		double baseHeatChange1 = 0;
+		int baseHeatSamples = 0;
+		
+		// The ratio between the last two changes, the number of samples in a row whose ratios were in
+		//   (0, 1) and within ratioAgreement of the one before, and the largest ratio among those samples
+		double previousRatio = 0;
+		int consistentRatios = 0;
+		double maxConsistentRatio = 0;
+		lastSimulationWasRaced = false;
+		
+		// Recent base heat samples and extrapolated equilibrium scores (circular buffers)
+		final double[] baseHeatHistory = new double[extrapolationStride * 2 + 1];
+		final double[] extrapolatedHistory = new double[extrapolationStride + 1];
+		int extrapolatedSamples = 0;
+		
+		// Heavy-ball momentum, applied once per cycle of boundaryIterationSkips steps (a cycle is the
+		//   smallest unit where air and boundary cells are updated at their intended rate).
+		// It starts at zero, then is set from the observed convergence rate of this design.
+		float momentum = 0;
+		boolean isMomentumEstimated = false;
+		double changeWhenMomentumEnabled = 0;
+		if (accelerateDiffusion) {
+			Arrays.fill(cellPreviousStep, 0);
+			System.arraycopy(cellHeat, 0, cellCycleStart, 0, numCells);
+			if (useGPU) {
+				gpuProgram.setInputArg(9, cellPreviousStep);
+				gpuProgram.setInputArg(10, cellCycleStart);
+				gpuProgram.setInputArg(11, momentum);
+			}
+		}
+		
 		// Array to represent the 6 adjacent cells
 		final byte[] axes = {
 				1, 0, 0,
@@ -823,7 +1309,7 @@ public class HeatsinkMain {
 		};
 		
 		// Reuse the temperature data from the previous iteration
-		//for (int i = 0; i < cellsWide3; i++) {
+		//for (int i = 0; i < numCells; i++) {
 		//	cellHeat[i] = 0;
 		//}
 		
@@ -833,7 +1319,9 @@ public class HeatsinkMain {
 			
 			final boolean shouldComputeAir = iterations % airIterationSkips == 0;
 			final boolean shouldComputeBoundary = iterations % boundaryIterationSkips == 0;
-
+			final boolean isEndOfCycle = accelerateDiffusion &&
+					iterations % boundaryIterationSkips == boundaryIterationSkips - 1;
+			
 			if (useGPU) {
 				gpuProgram.setInputArg(2, shouldComputeAir ? 1 : 0);
 				gpuProgram.setInputArg(3, shouldComputeBoundary ? 1 : 0);
@@ -843,12 +1331,13 @@ public class HeatsinkMain {
 				
 				// Add the delta heat to the cell heat
 				gpuProgram.setInputArg(7, (byte)1);
+				gpuProgram.setInputArg(12, isEndOfCycle ? (byte)1 : (byte)0);
 				gpuProgram.executeKernelNoWriteback();
 				//gpuProgram.copyOutputsFromGPU();
 			} else {
 				
 				// Only needs to be done on CPU.  This is done on the GPU kernel.
-				addHeat();
+				addHeat(iterations);
 				
 				// Compute the diffusion of heat through air only.
 				// Dispatch all of the threads.
@@ -858,42 +1347,48 @@ public class HeatsinkMain {
 					new Thread(new Runnable() {
 						public void run() {
 							
-							// Iterate over every cell and compute the heat gradient
-							for (int x = threadNum; x < cellsWide; x += numThreads) {
-								for (int y = 0; y < cellsWide; y++) {
-									for (int z = 0; z < cellsWide; z++) {
-										final int idx = idx(x, y, z);
-										
-										cellDeltaHeat[idx] = 0;
-										
-										// Iterate over the adjacent cells
-										for (int i = 0; i < 6 * 3; i += 3) {
-											// Check if this cell is in bounds
-											if (x + axes[i+0] >= 0 && x + axes[i+0] < cellsWide &&
-													y + axes[i+1] >= 0 && y + axes[i+1] < cellsWide &&
-													z + axes[i+2] >= 0 && z + axes[i+2] < cellsWide) {
-												
-												final int idx2 = idx(x + axes[i+0], y + axes[i+1], z + axes[i+2]);
-												
-												if (cellEnabled[idx] != cellEnabled[idx2]) {
-													// Air to metal boundary (exclude the heat source area)
-													if (!shouldComputeBoundary) {
-														continue;
-													}
-												} else if (cellEnabled[idx] == 0) {
-													// Air to air boundary
-													if (!shouldComputeAir) {
-														continue;
-													}
-												} // Metal to metal boundary is always computed
-												
-												cellDeltaHeat[idx] += (cellHeat[idx2] - cellHeat[idx]) * conductivity;
-											} else if (shouldComputeAir && !(y == 0 &&
-													x > airPadding*1.3f-1 && x < cellsWide-airPadding*1.3f &&
-													z > airPadding*1.3f-1 && z < cellsWide-airPadding*1.3f)) {
-												// This cell is not in bounds, so apply boundary conditions.
-												// The border heat is assumed to be ambient temperature air (0 degrees).
-												cellDeltaHeat[idx] -= cellHeat[idx] * conductivity;
+							// Iterate over every simulated cell and compute the heat gradient.
+							// Threads take turns on slabs of x that are one brick thick, so they never write to the same brick.
+							for (int slab = threadNum; slab * brickSize < cellsX - margin; slab += numThreads) {
+								for (int x = Math.max(margin, slab * brickSize); x < Math.min(cellsX - margin, (slab+1) * brickSize); x++) {
+									for (int y = 0; y < cellsY - margin; y++) {
+										for (int z = margin; z < cellsZ - margin; z++) {
+											final int idx = idx(x, y, z);
+											
+											cellDeltaHeat[idx] = 0;
+											
+											// Iterate over the adjacent cells
+											for (int i = 0; i < 6 * 3; i += 3) {
+												// Check if this cell is in bounds
+												if (x + axes[i+0] >= margin && x + axes[i+0] < cellsX - margin &&
+														y + axes[i+1] >= 0 && y + axes[i+1] < cellsY - margin &&
+														z + axes[i+2] >= margin && z + axes[i+2] < cellsZ - margin) {
+													
+													final int idx2 = idx(x + axes[i+0], y + axes[i+1], z + axes[i+2]);
+													
+													if (cellEnabled[idx] != cellEnabled[idx2]) {
+														// Air to metal boundary (exclude the heat source area)
+														if (!shouldComputeBoundary) {
+															continue;
+														}
+													} else if (cellEnabled[idx] == 0) {
+														// Air to air boundary
+														if (!shouldComputeAir) {
+															continue;
+														}
+													} // Metal to metal boundary is always computed
+													
+													cellDeltaHeat[idx] += (getStoredHeat(idx2) - getStoredHeat(idx)) * conductivity;
+												} else if (shouldComputeAir && !(y == 0 &&
+														x > airPadding*1.3f-1 && x < cellsX-airPadding*1.3f &&
+														z > airPadding*1.3f-1 && z < cellsZ-airPadding*1.3f)) {
+													// This cell is not in bounds, so apply boundary conditions.
+													// The border heat is assumed to be ambient temperature air (0 degrees).
+													// The far-field border replaces it everywhere except the bottom.
+													final boolean isFarField = farFieldBoundary && y + axes[i+1] >= 0;
+													cellDeltaHeat[idx] -= getStoredHeat(idx) * conductivity *
+															(isFarField ? getFarFieldFactor(x, y, z) : 1);
+												}
 											}
 										}
 									}
@@ -915,8 +1410,28 @@ public class HeatsinkMain {
 				} catch (Exception e) {}
 				
 				// Add the delta values to the actual values.
-				for (int i = 0; i < cellsWide3; i++) {
-					cellHeat[i] += cellDeltaHeat[i];
+				if (compactHeatStorage) {
+					for (int i = 0; i < numCells; i++) {
+						setCompactHeat(i, getStoredHeat(i) + cellDeltaHeat[i], iterations*3 + 1);
+					}
+				} else {
+					for (int i = 0; i < numCells; i++) {
+						cellHeat[i] += cellDeltaHeat[i];
+					}
+				}
+				
+				// At the end of each cycle, keep moving in the direction of the previous cycle
+				if (isEndOfCycle) {
+					for (int i = 0; i < numCells; i++) {
+						final float heat = getStoredHeat(i) + momentum * cellPreviousStep[i];
+						cellPreviousStep[i] = heat - cellCycleStart[i];
+						cellCycleStart[i] = heat;
+						if (compactHeatStorage) {
+							setCompactHeat(i, heat, iterations*3 + 2);
+						} else {
+							cellHeat[i] = heat;
+						}
+					}
 				}
 			}
 			
@@ -924,7 +1439,7 @@ public class HeatsinkMain {
 			/*
 			if (iterations % 100 == 0) {
 				double total = 0;
-				for (int i = 0; i < cellsWide3; i++) {
+				for (int i = 0; i < numCells; i++) {
 					total += cellHeat[i];
 				}
 				print(total);
@@ -941,6 +1456,11 @@ public class HeatsinkMain {
 				if (useGPU) {
 					// Copy calculated outputs back to main memory (for visualization and analysis)
 					gpuProgram.copyOutputsFromGPU();
+				} else if (compactHeatStorage) {
+					// The compact heat is only expanded to full precision for scoring (and visualization)
+					for (int i = 0; i < numCells; i++) {
+						cellHeat[i] = getStoredHeat(i);
+					}
 				}
 				
 				final double baseHeat = scoreHeatsink();
@@ -950,7 +1470,95 @@ public class HeatsinkMain {
 				}
 				
 				final double deltaBaseHeat = Math.abs(baseHeat - previousBaseHeat) / previousBaseHeat;
+				baseHeatChange1 = baseHeatChange0;
+				baseHeatChange0 = baseHeat - previousBaseHeat;
 				previousBaseHeat = baseHeat;
+				baseHeatSamples++;
+				
+				final double changeRatio = baseHeatChange0 / baseHeatChange1;
+				if (changeRatio > 0 && changeRatio < 1 && Math.abs(changeRatio - previousRatio) < ratioAgreement) {
+					consistentRatios++;
+					maxConsistentRatio = Math.max(maxConsistentRatio, changeRatio);
+				} else {
+					consistentRatios = 0;
+					maxConsistentRatio = changeRatio;
+				}
+				previousRatio = changeRatio;
+				
+				// Estimate the spectral radius of one cycle from the convergence rate of the score,
+				//   then use the optimal heavy-ball momentum for that radius: (1 - sqrt(1 - radius))^2.
+				// A single ratio can be thrown off by a transient, so wait until several in a row agree,
+				//   and use the largest of them.
+				if (accelerateDiffusion && !isMomentumEstimated && baseHeatSamples > momentumEstimationSamples &&
+						consistentRatios >= momentumConsistentRatios) {
+					final double radius = maxConsistentRatio;
+					if (radius > 0 && radius < 1) {
+						final double sqrtGap = Math.sqrt(1 - radius);
+						momentum = (float)Math.min((1 - sqrtGap) * (1 - sqrtGap), maxMomentum);
+						changeWhenMomentumEnabled = Math.abs(baseHeatChange0);
+						isMomentumEstimated = true;
+						if (useGPU) {
+							gpuProgram.setInputArg(11, momentum);
+						}
+					}
+				} else if (momentum > 0 && Math.abs(baseHeatChange0) > changeWhenMomentumEnabled * 10) {
+					// The accelerated iteration is diverging, so fall back to plain steps
+					System.err.println("WARNING: Momentum " + momentum + " is unstable for this design");
+					momentum = 0;
+					if (useGPU) {
+						gpuProgram.setInputArg(11, momentum);
+					}
+				}
+				
+				// Race the candidate against the incumbent.
+				// If the base heat is converging geometrically, then the remaining change is about
+				//   change * ratio / (1 - ratio).  Stop once even a generous lower bound loses.
+				// Early on, the fast modes of the air still dominate the changes, and the slow mode of the
+				//   metal would be missed, so only race after the minimum iterations, once the ratio has
+				//   held steady for a while (using the largest ratio in that stretch).
+				if (raceCandidates && !isFirstIteration && iterations > minimumIterations &&
+						consistentRatios >= raceConsistentRatios) {
+					final double remainingChange = baseHeatChange0 * maxConsistentRatio / (1 - maxConsistentRatio);
+					final double lowerBound = baseHeat + remainingChange - raceSafetyFactor * Math.abs(remainingChange);
+					if (lowerBound > incumbentScore * (1 + raceTolerance)) {
+						lastSimulationIterations = iterations;
+						lastSimulationWasRaced = true;
+						return lowerBound;
+					}
+				}
+				
+				// Predict the equilibrium score with Aitken's delta-squared process.
+				// Consecutive samples differ by too little compared to the rounding noise in the score,
+				//   so the samples used are spaced extrapolationStride samples apart.
+				// The difference from the prediction one stride earlier is used as the error estimate,
+				//   so we stop once the predictions have settled.
+				baseHeatHistory[baseHeatSamples % baseHeatHistory.length] = baseHeat;
+				if (extrapolateScore && !isFirstIteration && baseHeatSamples >= baseHeatHistory.length) {
+					final double x1 = baseHeatHistory[(baseHeatSamples - extrapolationStride) % baseHeatHistory.length];
+					final double x2 = baseHeatHistory[(baseHeatSamples + 1) % baseHeatHistory.length];
+					final double change0 = baseHeat - x1;
+					final double change1 = x1 - x2;
+					final double ratio = change0 / change1;
+					if (ratio > 0 && ratio < 1) {
+						final double extrapolatedScore = baseHeat - change0 * change0 / (change0 - change1);
+						extrapolatedHistory[extrapolatedSamples % extrapolatedHistory.length] = extrapolatedScore;
+						extrapolatedSamples++;
+						
+						if (extrapolatedSamples > extrapolationStride) {
+							final double previousExtrapolatedScore =
+									extrapolatedHistory[extrapolatedSamples % extrapolatedHistory.length];
+							final double extrapolationError =
+									Math.abs(extrapolatedScore - previousExtrapolatedScore) / extrapolatedScore;
+							if (extrapolationError < extrapolationMaxError) {
+								lastSimulationIterations = iterations;
+								return extrapolatedScore;
+							}
+						}
+					} else {
+						// The sequence isn't geometric here, so the predictions so far can't be trusted
+						extrapolatedSamples = 0;
+					}
+				}
 				
 				// Periodically print out statistics
 				if (currentTime - lastReportTime > 2000) {
@@ -967,6 +1575,7 @@ public class HeatsinkMain {
 					if (iterations < minimumIterations*1.2) {
 						System.err.println("WARNING: Convergence threshold may be too high");
 					}
+					lastSimulationIterations = iterations;
 					return baseHeat;
 				}
 			}
@@ -988,10 +1597,98 @@ public class HeatsinkMain {
 		}
 	}
 	
+	// Run a short optimization from the initial design with the current settings (without the
+	//   pipeline), accepting and rejecting candidates the same way as main().
+	// The state and statistics of the optional modes start over, so trials are independent.
+	// Returns {initial score, final score, accepted candidates, CPU seconds, CPU seconds until the
+	//   score first reached targetScore (or -1 if it didn't), wall seconds until then (or -1)}.
+	static double[] runOptimizationTrial(long seed, int numCandidates, double targetScore) {
+		setInitialDesign();
+		preprocessDesign();
+		BlockMutations.reset();
+		TabuList.reset();
+		TabuList.resetStatistics();
+		CoarseSurrogate.resetStatistics();
+		CompoundMutation.resetStatistics();
+		Arrays.fill(cellHeat, 0);
+		return optimizeDesign(new Random(seed), numCandidates, targetScore);
+	}
+	
+	// Optimize the current design for the given number of candidates, as in runOptimizationTrial(),
+	//   starting from the heat in cellHeat.
+	// With compound mutations, each simulation of a subset counts as a candidate.
+	static double[] optimizeDesign(Random trialRandom, int numCandidates, double targetScore) {
+		MutationGuide.reset();
+		final byte[] acceptedCells = cellEnabled.clone();
+		final float[] acceptedHeat = new float[numCells];
+		final long startTime = getProcessCpuTime();
+		final long startWallTime = System.nanoTime();
+		final double initialScore = evaluateCandidate(true, Double.MAX_VALUE);
+		System.arraycopy(cellHeat, 0, acceptedHeat, 0, numCells);
+		updateMutationGuide(acceptedCells, acceptedHeat);
+		
+		double score = initialScore;
+		int accepted = 0;
+		double timeToTarget = score <= targetScore ? 0 : -1;
+		double wallTimeToTarget = timeToTarget;
+		for (int candidate = 0; candidate < numCandidates; candidate++) {
+			final double newScore;
+			if (useCompoundMutations) {
+				newScore = CompoundMutation.evaluate(trialRandom, acceptedCells, acceptedHeat, score);
+				candidate += Math.max(1, CompoundMutation.lastSimulations) - 1;
+			} else {
+				mutateDesign(cellEnabled, trialRandom, disconnectedComponentTable);
+				preprocessDesign();
+				System.arraycopy(acceptedHeat, 0, cellHeat, 0, numCells);
+				newScore = evaluateCandidate(false, score);
+			}
+			if (useBlockMutations) {
+				BlockMutations.recordOutcome(newScore <= score);
+			}
+			if (newScore > score) {
+				if (useTabuList && !useCompoundMutations) {
+					TabuList.add(TabuList.getMutationId(acceptedCells, cellEnabled));
+				}
+				System.arraycopy(acceptedCells, 0, cellEnabled, 0, numCells);
+				continue;
+			}
+			
+			score = newScore;
+			accepted++;
+			System.arraycopy(cellEnabled, 0, acceptedCells, 0, numCells);
+			System.arraycopy(cellHeat, 0, acceptedHeat, 0, numCells);
+			updateMutationGuide(acceptedCells, acceptedHeat);
+			if (timeToTarget < 0 && score <= targetScore) {
+				timeToTarget = (getProcessCpuTime() - startTime) / 1e9;
+				wallTimeToTarget = (System.nanoTime() - startWallTime) / 1e9;
+			}
+		}
+		return new double[] {initialScore, score, accepted, (getProcessCpuTime() - startTime) / 1e9, timeToTarget,
+				wallTimeToTarget};
+	}
+	
+	// CPU time used by all threads of this process, in nanoseconds
+	static long getProcessCpuTime() {
+		return ((com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+	}
+	
 	// Convert an xyz coordinate to an index in the array
 	static int idx(int x, int y, int z) {
-		//return x * cellsWide * cellsWide + y * cellsWide + z;
-		return (x * cellsWide + y) * cellsWide + z;
+		return useBrickedLayout ? brickedIdx(x, y, z) : linearIdx(x, y, z);
+	}
+	
+	// Rows of z, one after another (x-neighbors are a whole y-z plane apart)
+	static int linearIdx(int x, int y, int z) {
+		//return x * cellsY * cellsZ + y * cellsZ + z;
+		return (x * cellsY + y) * cellsZ + z;
+	}
+	
+	// Small cubes of cells stored one after another, so all 6 neighbors of most cells
+	//   are in the same brick (64 cells, 256 bytes of heat).  Bricks and the cells within
+	//   them are in the same order as the linear layout.
+	static int brickedIdx(int x, int y, int z) {
+		final int brick = ((x >> 2) * bricksY + (y >> 2)) * bricksZ + (z >> 2);
+		return brick << 6 | (x & 3) << 4 | (y & 3) << 2 | (z & 3);
 	}
 	
 	private static void sleep(long millis) {
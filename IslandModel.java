@@ -0,0 +1,348 @@
+package heatsinkDesign;
+
+import java.io.File;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// This class runs an island model search over several local worker processes.
+// Each island evolves its own design from its own seed, like a separate run of main().  Every
+//    migrationInterval candidates, it publishes its accepted design and adopts the best design
+//    published by the islands it receives from, if that is better than its own.
+// The islands migrate through a shared memory-mapped file.  Each island writes only its own slot,
+//    which holds its design in SaveLoadTools' packed format and its statistics.  The slot's sequence
+//    number is odd while it is being written, so readers can skip or retry a slot that changed
+//    under them.  The sequence is written with release and read with acquire semantics, and fences
+//    keep the plain reads and writes of the slot between them from being reordered across it.
+// Run without arguments to start the islands and print their combined throughput until they are
+//    stopped (or for heatsink.islandSeconds seconds), after which the best design is saved.
+// The configuration comes from system properties (passed on to the workers along with the size):
+//    heatsink.islands            Number of worker processes
+//    heatsink.migrationInterval  Candidates each island evolves between migrations
+//    heatsink.islandTopology     "ring" (from the previous island), "all" (from every island), or "none"
+//    heatsink.islandSeconds      Seconds to run before stopping the islands, or 0 to run until killed
+
+public class IslandModel {
+	static private final int numIslands = Integer.getInteger("heatsink.islands", 4);
+	static private final int migrationInterval = Integer.getInteger("heatsink.migrationInterval", 50);
+	static private final String topology = System.getProperty("heatsink.islandTopology", "ring");
+	static private final int runSeconds = Integer.getInteger("heatsink.islandSeconds", 0);
+	static private final int reportInterval = 30;	// Seconds between reports of the islands' progress
+	static private final String islandFileName = "Islands.dat";
+	static private final String bestDesignFileName = "IslandBest.dat";
+	
+	// Layout of the shared file: a header with the size of the domain, then a slot per island
+	static private final int islandMagic = 0x4853494C; // "HSIL"
+	static private final int headerLength = 32;
+	static private final int sequenceOffset = 0;	// Odd while the slot is being written, 0 before the first write
+	static private final int scoreOffset = 8;
+	static private final int candidatesOffset = 16;
+	static private final int acceptedOffset = 24;
+	static private final int adoptedOffset = 32;	// Migrants adopted by the island
+	static private final int elapsedOffset = 40;	// Milliseconds since the island started
+	static private final int designOffset = 48;
+	static private final int maxReadTries = 10;
+	
+	// Mapped buffers are big-endian, like the plain getInt() and putInt() of the header
+	static private final VarHandle sequenceHandle = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	
+	static private MappedByteBuffer islandFile;
+	static private int slotLength;
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length == 2 && args[0].equals("worker")) {
+			runIsland(Integer.parseInt(args[1]));
+			return;
+		}
+		
+		if (!topology.equals("ring") && !topology.equals("all") && !topology.equals("none")) {
+			System.err.println("WARNING: Unknown island topology " + topology + ", migrating in a ring");
+		}
+		createIslandFile();
+		final List<Process> processes = new ArrayList<Process>();
+		for (int island = 0; island < numIslands; island++) {
+			processes.add(startIsland(island));
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				for (Process process : processes) {
+					process.destroy();
+				}
+			}
+		});
+		System.out.println(String.format("Started %d islands, migrating every %d candidates (%s topology)",
+				numIslands, migrationInterval, topology));
+		
+		final long startTime = System.nanoTime();
+		long previousCandidates = 0;
+		long previousTime = startTime;
+		while (runSeconds <= 0 || System.nanoTime() - startTime < runSeconds * 1000000000L) {
+			Thread.sleep(reportInterval * 1000L);
+			boolean isRunning = false;
+			for (Process process : processes) {
+				isRunning |= process.isAlive();
+			}
+			if (!isRunning) {
+				System.err.println("WARNING: Every island has stopped");
+				break;
+			}
+			
+			final long time = System.nanoTime();
+			final long candidates = printStatistics((time - startTime) / 1e9);
+			System.out.println(String.format("  %.2f candidates per second since the last report",
+					(candidates - previousCandidates) / ((time - previousTime) / 1e9)));
+			previousCandidates = candidates;
+			previousTime = time;
+		}
+		
+		for (Process process : processes) {
+			process.destroy();
+			process.waitFor();
+		}
+		printStatistics((System.nanoTime() - startTime) / 1e9);
+		
+		// Save the best published design
+		final byte[] packed = new byte[SaveLoadTools.getPackedLength()];
+		double bestScore = Double.MAX_VALUE;
+		for (int island = 0; island < numIslands; island++) {
+			final double score = readDesign(island, packed);
+			if (score < bestScore) {
+				bestScore = score;
+				SaveLoadTools.unpackDesign(packed, HeatsinkMain.cellEnabled);
+			}
+		}
+		if (bestScore < Double.MAX_VALUE) {
+			SaveLoadTools.saveDesign(bestDesignFileName, HeatsinkMain.cellEnabled);
+			System.out.println(String.format("Saved the best design (score %.5f) to %s", bestScore, bestDesignFileName));
+		}
+	}
+	
+	// Start a worker process for an island, with the same size and configuration as this one.
+	// Its output goes to its own log file.
+	private static Process startIsland(int island) throws Exception {
+		final List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + "/bin/java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith("heatsink.")) {
+				command.add("-D" + name + "=" + System.getProperty(name));
+			}
+		}
+		command.add(IslandModel.class.getName());
+		command.add("worker");
+		command.add(Integer.toString(island));
+		
+		final ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(new File("src/heatsinkDesign/Island" + island + ".log"));
+		return builder.start();
+	}
+	
+	// Evolve one island until the process is stopped
+	private static void runIsland(int island) throws Exception {
+		if (HeatsinkMain.useGPU) {
+			HeatsinkMain.initializeGPU();
+		}
+		mapIslandFile(false);
+		final Random random = new Random(island + 1);
+		HeatsinkMain.setInitialDesign();
+		HeatsinkMain.preprocessDesign();
+		BlockMutations.reset();
+		
+		final long startTime = System.nanoTime();
+		final byte[] packed = new byte[SaveLoadTools.getPackedLength()];
+		final byte[] migrant = new byte[packed.length];
+		long candidates = 0;
+		long accepted = 0;
+		long adopted = 0;
+		while (true) {
+			final double[] result = HeatsinkMain.optimizeDesign(random, migrationInterval, 0);
+			candidates += migrationInterval;
+			accepted += (long)result[2];
+			final byte[] design = SaveLoadTools.packDesign(HeatsinkMain.cellEnabled);
+			writeSlot(island, design, result[1], candidates, accepted, adopted, (System.nanoTime() - startTime) / 1000000);
+			
+			// Adopt the best design among the islands this one receives from.  A design it already has
+			//   (adopted earlier, or reached by both) can score a little differently when resimulated, so skip it.
+			double score = result[1];
+			int source = -1;
+			for (int other = 0; other < numIslands; other++) {
+				if (other == island || !isSource(other, island) || readScore(other) >= score) {
+					continue;
+				}
+				final double otherScore = readDesign(other, packed);
+				if (otherScore < score && !Arrays.equals(packed, design)) {
+					score = otherScore;
+					source = other;
+					System.arraycopy(packed, 0, migrant, 0, packed.length);
+				}
+			}
+			if (source >= 0) {
+				SaveLoadTools.unpackDesign(migrant, HeatsinkMain.cellEnabled);
+				HeatsinkMain.preprocessDesign();
+				adopted++;
+				HeatsinkMain.print(String.format("Island %d adopted the design of island %d (score %.5f)",
+						island, source, score));
+			}
+			HeatsinkMain.print(String.format("Island %d: score %.5f after %d candidates (%d accepted, %d adopted)",
+					island, result[1], candidates, accepted, adopted));
+		}
+	}
+	
+	// Whether an island receives migrants from another by the topology
+	private static boolean isSource(int source, int island) {
+		if (topology.equals("none")) {
+			return false;
+		}
+		if (topology.equals("all")) {
+			return true;
+		}
+		return source == (island + numIslands - 1) % numIslands;
+	}
+	
+	// Print the statistics of every island, and return the total candidates they have evolved
+	private static long printStatistics(double seconds) {
+		long totalCandidates = 0;
+		long totalAccepted = 0;
+		long totalAdopted = 0;
+		double bestScore = Double.MAX_VALUE;
+		final StringBuilder islands = new StringBuilder();
+		for (int island = 0; island < numIslands; island++) {
+			final int offset = headerLength + island * slotLength;
+			if (getSequence(offset) == 0) {
+				islands.append(String.format("  Island %d: starting\n", island));
+				continue;
+			}
+			final double score = islandFile.getDouble(offset + scoreOffset);
+			final long candidates = islandFile.getLong(offset + candidatesOffset);
+			final long accepted = islandFile.getLong(offset + acceptedOffset);
+			final long adopted = islandFile.getLong(offset + adoptedOffset);
+			final long elapsed = islandFile.getLong(offset + elapsedOffset);
+			totalCandidates += candidates;
+			totalAccepted += accepted;
+			totalAdopted += adopted;
+			bestScore = Math.min(bestScore, score);
+			islands.append(String.format("  Island %d: score %.5f, %d candidates (%.2f per second), %d accepted, " +
+					"%d migrants adopted\n", island, score, candidates, candidates / Math.max(elapsed / 1000.0, 1e-3),
+					accepted, adopted));
+		}
+		System.out.print(String.format("After %.0f seconds: best score %.5f, %d candidates (%.2f per second), " +
+				"%d accepted, %d migrants adopted\n", seconds, bestScore, totalCandidates, totalCandidates / seconds,
+				totalAccepted, totalAdopted) + islands);
+		return totalCandidates;
+	}
+	
+	// Create the shared file, empty, with a slot for every island
+	private static void createIslandFile() throws Exception {
+		Files.deleteIfExists(Paths.get("src/heatsinkDesign/" + islandFileName));
+		mapIslandFile(true);
+		islandFile.putInt(0, islandMagic);
+		islandFile.putInt(4, numIslands);
+		islandFile.putInt(8, HeatsinkMain.cellsX);
+		islandFile.putInt(12, HeatsinkMain.cellsY);
+		islandFile.putInt(16, HeatsinkMain.cellsZ);
+		islandFile.putInt(20, HeatsinkMain.airPadding);
+	}
+	
+	private static void mapIslandFile(boolean create) throws Exception {
+		final Path path = Paths.get("src/heatsinkDesign/" + islandFileName);
+		slotLength = (designOffset + SaveLoadTools.getPackedLength() + 7) / 8 * 8;
+		final long length = headerLength + (long)numIslands * slotLength;
+		final FileChannel channel = create ?
+				FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE) :
+				FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		islandFile = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+		channel.close();
+		
+		if (!create && (islandFile.getInt(0) != islandMagic || islandFile.getInt(4) != numIslands ||
+				islandFile.getInt(8) != HeatsinkMain.cellsX || islandFile.getInt(12) != HeatsinkMain.cellsY ||
+				islandFile.getInt(16) != HeatsinkMain.cellsZ)) {
+			throw new IllegalStateException("The island file doesn't match this island's configuration");
+		}
+	}
+	
+	// Publish an island's design and statistics
+	private static void writeSlot(int island, byte[] packed, double score, long candidates, long accepted,
+			long adopted, long elapsedMillis) {
+		final int offset = headerLength + island * slotLength;
+		final int sequence = islandFile.getInt(offset + sequenceOffset);	// Only this island writes it
+		sequenceHandle.setOpaque(islandFile, offset + sequenceOffset, sequence + 1);
+		VarHandle.releaseFence();	// Readers see the odd sequence before any of the new fields
+		islandFile.putDouble(offset + scoreOffset, score);
+		islandFile.putLong(offset + candidatesOffset, candidates);
+		islandFile.putLong(offset + acceptedOffset, accepted);
+		islandFile.putLong(offset + adoptedOffset, adopted);
+		islandFile.putLong(offset + elapsedOffset, elapsedMillis);
+		for (int i = 0; i < packed.length; i++) {
+			islandFile.put(offset + designOffset + i, packed[i]);
+		}
+		sequenceHandle.setRelease(islandFile, offset + sequenceOffset, sequence + 2);
+	}
+	
+	// The score published by an island, or Double.MAX_VALUE if it hasn't published yet or it kept
+	//   changing while being read
+	private static double readScore(int island) {
+		final int offset = headerLength + island * slotLength;
+		for (int i = 0; i < maxReadTries; i++) {
+			final int sequence = getSequence(offset);
+			if (sequence == 0) {
+				return Double.MAX_VALUE;
+			}
+			if ((sequence & 1) == 1) {
+				Thread.yield();
+				continue;
+			}
+			final double score = islandFile.getDouble(offset + scoreOffset);
+			if (isUnchanged(offset, sequence)) {
+				return score;
+			}
+		}
+		return Double.MAX_VALUE;
+	}
+	
+	// Copy the design published by an island into packed.
+	// Returns its score, or Double.MAX_VALUE if there is no design or it kept changing while being read.
+	private static double readDesign(int island, byte[] packed) {
+		final int offset = headerLength + island * slotLength;
+		for (int i = 0; i < maxReadTries; i++) {
+			final int sequence = getSequence(offset);
+			if (sequence == 0) {
+				return Double.MAX_VALUE;
+			}
+			if ((sequence & 1) == 1) {
+				Thread.yield();
+				continue;
+			}
+			final double score = islandFile.getDouble(offset + scoreOffset);
+			for (int j = 0; j < packed.length; j++) {
+				packed[j] = islandFile.get(offset + designOffset + j);
+			}
+			if (isUnchanged(offset, sequence)) {
+				return score;
+			}
+		}
+		return Double.MAX_VALUE;
+	}
+	
+	// The sequence of the slot at offset, read before any of the slot's fields
+	private static int getSequence(int offset) {
+		return (int)sequenceHandle.getAcquire(islandFile, offset + sequenceOffset);
+	}
+	
+	// Whether the slot at offset still has the given sequence, after the fields read since it was
+	private static boolean isUnchanged(int offset, int sequence) {
+		VarHandle.acquireFence();
+		return (int)sequenceHandle.getOpaque(islandFile, offset + sequenceOffset) == sequence;
+	}
+}
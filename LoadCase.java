@@ -0,0 +1,22 @@
+package heatsinkDesign;
+
+// This class is a data structure for one load case: a rectangular heat source
+//    on the bottom of the domain, and the heat it adds to each of its cells.
+
+public class LoadCase {
+	public int minX, maxX;		// Heat source cells along x (the maximum is exclusive)
+	public int minZ, maxZ;		// Heat source cells along z (the maximum is exclusive)
+	public float heatPerCell;
+	
+	public LoadCase(int minX, int maxX, int minZ, int maxZ, float heatPerCell) {
+		this.minX = minX;
+		this.maxX = maxX;
+		this.minZ = minZ;
+		this.maxZ = maxZ;
+		this.heatPerCell = heatPerCell;
+	}
+	
+	boolean isHeatSourceCell(int x, int y, int z) {
+		return y == 0 && x >= minX && x < maxX && z >= minZ && z < maxZ;
+	}
+}
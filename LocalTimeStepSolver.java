@@ -0,0 +1,215 @@
+package heatsinkDesign;
+
+import java.util.PriorityQueue;
+
+// This class finds the equilibrium heat with local time stepping.
+// It generalizes the fixed pattern of the explicit simulation (air every 30 steps, boundaries
+//    every 60) to bricks of cells that each advance at their own rate.
+// Each brick takes the largest time step that is stable for its materials, with the
+//    cycle-averaged conductances, so metal bricks step every tick and air bricks about every 30.
+// A priority queue keyed on the tick each brick is due advances only the bricks that are due.
+// Optionally (maxSlack), bricks that are changing much less than the fastest ones are put off for a
+//    few more of their steps, and a brick that changes a lot wakes up its neighbors.
+//    This only helps early on, since near equilibrium every brick changes at about the same rate.
+// Skipped time is not made up, which doesn't change the equilibrium (where every flow is balanced).
+
+public class LocalTimeStepSolver {
+	static int maxSlack = 1;							// Most steps a slowly changing brick can be put off by (1 = never)
+	static private final int ticksPerCheck = 60;		// Ticks between convergence checks
+	static private final int maxTicks = 10000000;
+	static int lastTicks = 0;							// Number of ticks the last solve took
+	static long lastCellUpdates = 0;					// Number of cell updates the last solve took
+	
+	// Per-brick data
+	static private final int numBricks = HeatsinkMain.bricksX * HeatsinkMain.bricksY * HeatsinkMain.bricksZ;
+	static private final int[] stablePeriod = new int[numBricks];	// Ticks per stable time step
+	static private final int[] due = new int[numBricks];			// Tick when the brick is next updated
+	static private final float[] lastChange = new float[numBricks];	// Largest heat change in the last update
+	
+	// Solve for the equilibrium of the given design, starting from the given heat.
+	// Returns the score once it changes by less than maxError between two checks, twice in a row.
+	static double solve(byte[] cells, float[] heat, double maxError) {
+		final PriorityQueue<Long> queue = new PriorityQueue<Long>();
+		for (int brick = 0; brick < numBricks; brick++) {
+			stablePeriod[brick] = getStablePeriod(cells, brick);
+			due[brick] = 0;
+			lastChange[brick] = Float.MAX_VALUE;
+			queue.add(getQueueKey(0, brick));
+		}
+		
+		double previousScore = -999;
+		int convergedChecks = 0;
+		float windowMaxChange = 0;			// Largest change in the current check window
+		float referenceChange = Float.MAX_VALUE; // Largest change in the previous check window
+		int nextCheck = ticksPerCheck;
+		lastCellUpdates = 0;
+		
+		while (true) {
+			final long key = queue.poll();
+			final int tick = (int)(key >>> 32);
+			final int brick = (int)key;
+			if (tick != due[brick]) {
+				continue; // This brick was rescheduled since this entry was added
+			}
+			
+			if (tick >= nextCheck) {
+				nextCheck += ticksPerCheck;
+				referenceChange = windowMaxChange;
+				windowMaxChange = 0;
+				
+				final double score = HeatsinkMain.scoreHeatsink(heat);
+				convergedChecks = Math.abs(score - previousScore) / score < maxError ? convergedChecks + 1 : 0;
+				previousScore = score;
+				if (convergedChecks >= 2 || tick >= maxTicks) {
+					if (tick >= maxTicks) {
+						System.err.println("WARNING: Local time step solver did not converge");
+					}
+					lastTicks = tick;
+					return score;
+				}
+			}
+			
+			final float change = advanceBrick(cells, heat, brick, stablePeriod[brick]);
+			lastChange[brick] = change;
+			windowMaxChange = Math.max(windowMaxChange, change);
+			
+			// Put off bricks that are changing much less than the fastest ones, in proportion
+			int slack = 1;
+			while (slack < maxSlack && change * slack * 2 < referenceChange) {
+				slack *= 2;
+			}
+			due[brick] = tick + stablePeriod[brick] * slack;
+			queue.add(getQueueKey(due[brick], brick));
+			
+			wakeNeighbors(queue, brick, tick, change);
+		}
+	}
+	
+	private static long getQueueKey(int tick, int brick) {
+		return (long)tick << 32 | brick;
+	}
+	
+	// Bring forward the neighbors that have been changing less than this brick just did
+	private static void wakeNeighbors(PriorityQueue<Long> queue, int brick, int tick, float change) {
+		final int bz = brick % HeatsinkMain.bricksZ;
+		final int by = brick / HeatsinkMain.bricksZ % HeatsinkMain.bricksY;
+		final int bx = brick / HeatsinkMain.bricksZ / HeatsinkMain.bricksY;
+		final int[] neighbors = {
+				bx > 0 ? brick - HeatsinkMain.bricksY * HeatsinkMain.bricksZ : -1,
+				bx < HeatsinkMain.bricksX-1 ? brick + HeatsinkMain.bricksY * HeatsinkMain.bricksZ : -1,
+				by > 0 ? brick - HeatsinkMain.bricksZ : -1,
+				by < HeatsinkMain.bricksY-1 ? brick + HeatsinkMain.bricksZ : -1,
+				bz > 0 ? brick - 1 : -1,
+				bz < HeatsinkMain.bricksZ-1 ? brick + 1 : -1
+		};
+		for (int neighbor : neighbors) {
+			if (neighbor >= 0 && change > lastChange[neighbor] && due[neighbor] > tick + stablePeriod[neighbor]) {
+				due[neighbor] = tick + stablePeriod[neighbor];
+				queue.add(getQueueKey(due[neighbor], neighbor));
+			}
+		}
+	}
+	
+	// The largest time step (in ticks) for which every cell in the brick moves towards the balance
+	//   of its neighbors without overshooting it
+	private static int getStablePeriod(byte[] cells, int brick) {
+		float maxConductance = 0;
+		for (int i = 0; i < HeatsinkMain.brickSize * HeatsinkMain.brickSize * HeatsinkMain.brickSize; i++) {
+			final int x = getBrickCellX(brick, i);
+			final int y = getBrickCellY(brick, i);
+			final int z = getBrickCellZ(brick, i);
+			if (x < HeatsinkMain.cellsX && y < HeatsinkMain.cellsY && z < HeatsinkMain.cellsZ) {
+				maxConductance = Math.max(maxConductance, getTotalConductance(cells, x, y, z));
+			}
+		}
+		return Math.max(1, (int)(1 / maxConductance));
+	}
+	
+	private static float getTotalConductance(byte[] cells, int x, int y, int z) {
+		final byte cell = cells[HeatsinkMain.idx(x, y, z)];
+		final float border = HeatsinkMain.getBorderConductance(x, y, z);
+		float total = 0;
+		total += x > 0 ? HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x-1, y, z)]) : border;
+		total += x < HeatsinkMain.cellsX-1 ? HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x+1, y, z)]) : border;
+		total += y > 0 ? HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x, y-1, z)]) : border;
+		total += y < HeatsinkMain.cellsY-1 ? HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x, y+1, z)]) : border;
+		total += z > 0 ? HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x, y, z-1)]) : border;
+		total += z < HeatsinkMain.cellsZ-1 ? HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x, y, z+1)]) : border;
+		return total;
+	}
+	
+	// Advance every cell of the brick by the given number of ticks, in place.
+	// Returns the largest change in heat.
+	private static float advanceBrick(byte[] cells, float[] heat, int brick, int ticks) {
+		float maxChange = 0;
+		for (int i = 0; i < HeatsinkMain.brickSize * HeatsinkMain.brickSize * HeatsinkMain.brickSize; i++) {
+			final int x = getBrickCellX(brick, i);
+			final int y = getBrickCellY(brick, i);
+			final int z = getBrickCellZ(brick, i);
+			if (x >= HeatsinkMain.cellsX || y >= HeatsinkMain.cellsY || z >= HeatsinkMain.cellsZ) {
+				continue;
+			}
+			final int idx = HeatsinkMain.idx(x, y, z);
+			final byte cell = cells[idx];
+			final float cellHeat = heat[idx];
+			final float border = HeatsinkMain.getBorderConductance(x, y, z);
+			
+			float flow = HeatsinkMain.isHeatSourceCell(x, y, z) ? HeatsinkMain.heatSourceHeatPerCell : 0;
+			if (x > 0) {
+				final int idx2 = HeatsinkMain.idx(x-1, y, z);
+				flow += HeatsinkMain.getConductance(cell, cells[idx2]) * (heat[idx2] - cellHeat);
+			} else {
+				flow -= border * cellHeat;
+			}
+			if (x < HeatsinkMain.cellsX-1) {
+				final int idx2 = HeatsinkMain.idx(x+1, y, z);
+				flow += HeatsinkMain.getConductance(cell, cells[idx2]) * (heat[idx2] - cellHeat);
+			} else {
+				flow -= border * cellHeat;
+			}
+			if (y > 0) {
+				final int idx2 = HeatsinkMain.idx(x, y-1, z);
+				flow += HeatsinkMain.getConductance(cell, cells[idx2]) * (heat[idx2] - cellHeat);
+			} else {
+				flow -= border * cellHeat;
+			}
+			if (y < HeatsinkMain.cellsY-1) {
+				final int idx2 = HeatsinkMain.idx(x, y+1, z);
+				flow += HeatsinkMain.getConductance(cell, cells[idx2]) * (heat[idx2] - cellHeat);
+			} else {
+				flow -= border * cellHeat;
+			}
+			if (z > 0) {
+				final int idx2 = HeatsinkMain.idx(x, y, z-1);
+				flow += HeatsinkMain.getConductance(cell, cells[idx2]) * (heat[idx2] - cellHeat);
+			} else {
+				flow -= border * cellHeat;
+			}
+			if (z < HeatsinkMain.cellsZ-1) {
+				final int idx2 = HeatsinkMain.idx(x, y, z+1);
+				flow += HeatsinkMain.getConductance(cell, cells[idx2]) * (heat[idx2] - cellHeat);
+			} else {
+				flow -= border * cellHeat;
+			}
+			
+			final float change = ticks * flow;
+			heat[idx] = cellHeat + change;
+			maxChange = Math.max(maxChange, Math.abs(change));
+			lastCellUpdates++;
+		}
+		return maxChange;
+	}
+	
+	// Coordinates of the i'th cell of a brick
+	private static int getBrickCellX(int brick, int i) {
+		return brick / HeatsinkMain.bricksZ / HeatsinkMain.bricksY * HeatsinkMain.brickSize + i / (HeatsinkMain.brickSize * HeatsinkMain.brickSize);
+	}
+	
+	private static int getBrickCellY(int brick, int i) {
+		return brick / HeatsinkMain.bricksZ % HeatsinkMain.bricksY * HeatsinkMain.brickSize + i / HeatsinkMain.brickSize % HeatsinkMain.brickSize;
+	}
+	
+	private static int getBrickCellZ(int brick, int i) {
+		return brick % HeatsinkMain.bricksZ * HeatsinkMain.brickSize + i % HeatsinkMain.brickSize;
+	}
+}
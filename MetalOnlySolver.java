@@ -0,0 +1,192 @@
+package heatsinkDesign;
+
+// This class finds the equilibrium heat by solving conduction in the metal only.
+// Instead of simulating the surrounding air, every exposed metal face loses heat to
+//    ambient air (0 degrees) in proportion to its temperature (a convective boundary).
+// Only the metal cells are stored, as a compact list with precomputed neighbor indices,
+//    which is usually an order of magnitude fewer cells than the full grid.
+// Heat source cells are always included, even if they are air, so that removing metal
+//    from under the heat source is not mistaken for an improvement.
+// The system is symmetric positive definite, so it is solved with the conjugate gradient method.
+
+public class MetalOnlySolver {
+	static private final int maxIterations = 20000;
+	static int lastIterations = 0;		// Number of iterations the last solve took
+	static int lastCellCount = 0;		// Number of cells solved for in the last solve
+	
+	// Per-cell data, indexed by position in the list (not by grid index)
+	static private int[] gridIndex = new int[0];		// Grid index of each listed cell
+	static private int[] neighbors = new int[0];		// 6 list indices per cell, or -1 if not listed
+	static private float[] neighborConductance = new float[0]; // 6 conductances per cell
+	static private float[] diagonal = new float[0];		// Total conductance of each cell, including exposed faces
+	static private float[] source = new float[0];		// Heat added to each cell
+	
+	// Solve for the equilibrium of the given design, starting from the given heat.
+	// Cells that aren't solved for (air) are set to ambient temperature.
+	// Returns the score once the relative residual is less than tolerance.
+	static double solve(byte[] cells, float[] heat, float convectionCoefficient, double tolerance) {
+		final int count = buildCellList(cells, convectionCoefficient);
+		
+		// Jacobi-preconditioned conjugate gradient
+		final double[] solution = new double[count];
+		final double[] residual = new double[count];
+		final double[] preconditioned = new double[count];
+		final double[] direction = new double[count];
+		final double[] product = new double[count];
+		
+		for (int k = 0; k < count; k++) {
+			solution[k] = heat[gridIndex[k]];
+		}
+		multiply(solution, product, count);
+		double sourceNorm = 0;
+		double rz = 0;
+		for (int k = 0; k < count; k++) {
+			residual[k] = source[k] - product[k];
+			preconditioned[k] = residual[k] / diagonal[k];
+			direction[k] = preconditioned[k];
+			rz += residual[k] * preconditioned[k];
+			sourceNorm += source[k] * source[k];
+		}
+		sourceNorm = Math.sqrt(sourceNorm);
+		
+		int iteration = 0;
+		for (; iteration < maxIterations; iteration++) {
+			double residualNorm = 0;
+			for (int k = 0; k < count; k++) {
+				residualNorm += residual[k] * residual[k];
+			}
+			if (Math.sqrt(residualNorm) < tolerance * sourceNorm) {
+				break;
+			}
+			
+			multiply(direction, product, count);
+			double directionProduct = 0;
+			for (int k = 0; k < count; k++) {
+				directionProduct += direction[k] * product[k];
+			}
+			final double alpha = rz / directionProduct;
+			
+			double newRz = 0;
+			for (int k = 0; k < count; k++) {
+				solution[k] += alpha * direction[k];
+				residual[k] -= alpha * product[k];
+				preconditioned[k] = residual[k] / diagonal[k];
+				newRz += residual[k] * preconditioned[k];
+			}
+			final double beta = newRz / rz;
+			rz = newRz;
+			for (int k = 0; k < count; k++) {
+				direction[k] = preconditioned[k] + beta * direction[k];
+			}
+		}
+		if (iteration == maxIterations) {
+			System.err.println("WARNING: Metal-only solver did not converge");
+		}
+		lastIterations = iteration;
+		lastCellCount = count;
+		
+		// Write the result back into the full grid
+		for (int i = 0; i < HeatsinkMain.numCells; i++) {
+			heat[i] = 0;
+		}
+		for (int k = 0; k < count; k++) {
+			heat[gridIndex[k]] = (float)solution[k];
+		}
+		return HeatsinkMain.scoreHeatsink(heat);
+	}
+	
+	// Compute product = A * vector, where A is the conductance matrix
+	private static void multiply(double[] vector, double[] product, int count) {
+		for (int k = 0; k < count; k++) {
+			double total = diagonal[k] * vector[k];
+			for (int i = 0; i < 6; i++) {
+				final int neighbor = neighbors[k*6 + i];
+				if (neighbor >= 0) {
+					total -= neighborConductance[k*6 + i] * vector[neighbor];
+				}
+			}
+			product[k] = total;
+		}
+	}
+	
+	// Build the list of cells to solve for, with their neighbors and conductances.
+	// Returns the number of cells in the list.
+	private static int buildCellList(byte[] cells, float convectionCoefficient) {
+		final int[] listIndex = new int[HeatsinkMain.numCells];
+		
+		// Number the cells that are metal or heat source cells
+		int count = 0;
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+					final int idx = HeatsinkMain.idx(x, y, z);
+					listIndex[idx] = (cells[idx] == 1 || HeatsinkMain.isHeatSourceCell(x, y, z)) ? count++ : -1;
+				}
+			}
+		}
+		
+		if (gridIndex.length < count) {
+			gridIndex = new int[count];
+			neighbors = new int[count * 6];
+			neighborConductance = new float[count * 6];
+			diagonal = new float[count];
+			source = new float[count];
+		}
+		
+		// Array to represent the 6 adjacent cells
+		final byte[] axes = {
+				1, 0, 0,
+				-1, 0, 0,
+				0, 1, 0,
+				0, -1, 0,
+				0, 0, 1,
+				0, 0, -1
+		};
+		
+		final float conductance = HeatsinkMain.getConductance((byte)1, (byte)1);
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+					final int idx = HeatsinkMain.idx(x, y, z);
+					final int k = listIndex[idx];
+					if (k < 0) {
+						continue;
+					}
+					final boolean isHeatSource = HeatsinkMain.isHeatSourceCell(x, y, z);
+					gridIndex[k] = idx;
+					source[k] = isHeatSource ? HeatsinkMain.heatSourceHeatPerCell : 0;
+					diagonal[k] = 0;
+					
+					for (int i = 0; i < 6; i++) {
+						final int x2 = x + axes[i*3+0];
+						final int y2 = y + axes[i*3+1];
+						final int z2 = z + axes[i*3+2];
+						neighbors[k*6 + i] = -1;
+						neighborConductance[k*6 + i] = 0;
+						
+						if (x2 >= 0 && x2 < HeatsinkMain.cellsX && y2 >= 0 && y2 < HeatsinkMain.cellsY &&
+								z2 >= 0 && z2 < HeatsinkMain.cellsZ) {
+							final int idx2 = HeatsinkMain.idx(x2, y2, z2);
+							if (listIndex[idx2] >= 0) {
+								// Metal conducts to metal.  Anything involving a heat source air cell
+								//   is treated like an exposed face.
+								final float g = (cells[idx] == 1 && cells[idx2] == 1) ? conductance : convectionCoefficient;
+								neighbors[k*6 + i] = listIndex[idx2];
+								neighborConductance[k*6 + i] = g;
+								diagonal[k] += g;
+								continue;
+							}
+						} else if (isHeatSource && y2 < 0) {
+							// The heat source side is insulated
+							continue;
+						}
+						
+						// Exposed face losing heat to the ambient air
+						diagonal[k] += convectionCoefficient;
+					}
+				}
+			}
+		}
+		return count;
+	}
+}
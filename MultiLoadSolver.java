@@ -0,0 +1,225 @@
+package heatsinkDesign;
+
+import java.util.Arrays;
+
+// This class finds the equilibrium heat of one design under several load cases at once.
+// Every load case has its own heat source, but the conductances all come from the same design.
+// The heat of all cases is stored interleaved (all cases of a cell next to each other), so each
+//    sweep reads the design and computes each conductance once for all of the cases.
+// Each case runs its own Jacobi-preconditioned conjugate gradient iteration, in lockstep.
+// The conductances are the cycle-averaged conductances of the explicit simulation, as in ADISolver.
+
+public class MultiLoadSolver {
+	static private final int maxIterations = 20000;
+	static int lastIterations = 0;				// Number of iterations the last solve took
+	
+	static private float[] solution = new float[0];	// Heat of every case, kept to warm-start the next solve
+	static private float[] residual = new float[0];
+	static private float[] direction = new float[0];
+	static private float[] product = new float[0];
+	static private float[] diagonal = new float[0];		// Total conductance of each cell in each case
+	
+	// Solve for the equilibrium of the given design under every load case.
+	// The heat of the first case is copied into firstCaseHeat (for visualization).
+	// Returns the score of each case once all of their relative residuals are less than tolerance.
+	static double[] solve(final byte[] cells, final LoadCase[] cases, float[] firstCaseHeat, double tolerance) {
+		final int numCases = cases.length;
+		final int length = HeatsinkMain.numCells * numCases;
+		if (solution.length != length) {
+			solution = new float[length];
+			residual = new float[length];
+			direction = new float[length];
+			product = new float[length];
+			diagonal = new float[length];
+		}
+		
+		// The diagonal only differs between cases where the bottom is insulated by a heat source.
+		// Cells outside the domain (padding in the bricked layout) are left at 1, so they stay at 0.
+		Arrays.fill(diagonal, 1);
+		ADISolver.runInParallel(new ADISolver.LineTask() {
+			public void run(int threadNum) {
+				for (int x = threadNum; x < HeatsinkMain.cellsX; x += HeatsinkMain.numThreads) {
+					computeDiagonal(cells, cases, x);
+				}
+			}
+		});
+		
+		// Jacobi-preconditioned conjugate gradient, with separate scalars for each case
+		multiply(cells, solution, numCases);
+		final double[] sourceNorm = new double[numCases];
+		final double[] rz = new double[numCases];
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+					final int base = HeatsinkMain.idx(x, y, z) * numCases;
+					for (int k = 0; k < numCases; k++) {
+						final float source = cases[k].isHeatSourceCell(x, y, z) ? cases[k].heatPerCell : 0;
+						residual[base + k] = source - product[base + k];
+						direction[base + k] = residual[base + k] / diagonal[base + k];
+						rz[k] += residual[base + k] * direction[base + k];
+						sourceNorm[k] += source * source;
+					}
+				}
+			}
+		}
+		
+		final double[] residualNorm = new double[numCases];
+		final double[] directionProduct = new double[numCases];
+		final double[] newRz = new double[numCases];
+		final float[] alpha = new float[numCases];
+		final float[] beta = new float[numCases];
+		int iteration = 0;
+		for (; iteration < maxIterations; iteration++) {
+			Arrays.fill(residualNorm, 0);
+			for (int i = 0; i < length; i += numCases) {
+				for (int k = 0; k < numCases; k++) {
+					residualNorm[k] += residual[i + k] * residual[i + k];
+				}
+			}
+			boolean isConverged = true;
+			for (int k = 0; k < numCases; k++) {
+				isConverged &= residualNorm[k] < tolerance * tolerance * sourceNorm[k];
+			}
+			if (isConverged) {
+				break;
+			}
+			
+			multiply(cells, direction, numCases);
+			Arrays.fill(directionProduct, 0);
+			for (int i = 0; i < length; i += numCases) {
+				for (int k = 0; k < numCases; k++) {
+					directionProduct[k] += direction[i + k] * product[i + k];
+				}
+			}
+			
+			for (int k = 0; k < numCases; k++) {
+				alpha[k] = (float)(rz[k] / directionProduct[k]);
+			}
+			Arrays.fill(newRz, 0);
+			for (int i = 0; i < length; i += numCases) {
+				for (int k = 0; k < numCases; k++) {
+					solution[i + k] += alpha[k] * direction[i + k];
+					residual[i + k] -= alpha[k] * product[i + k];
+					newRz[k] += residual[i + k] * residual[i + k] / diagonal[i + k];
+				}
+			}
+			for (int k = 0; k < numCases; k++) {
+				beta[k] = (float)(newRz[k] / rz[k]);
+			}
+			for (int i = 0; i < length; i += numCases) {
+				for (int k = 0; k < numCases; k++) {
+					direction[i + k] = residual[i + k] / diagonal[i + k] + beta[k] * direction[i + k];
+				}
+			}
+			System.arraycopy(newRz, 0, rz, 0, numCases);
+		}
+		if (iteration == maxIterations) {
+			System.err.println("WARNING: Multiple load case solver did not converge");
+		}
+		lastIterations = iteration;
+		
+		for (int i = 0; i < HeatsinkMain.numCells; i++) {
+			firstCaseHeat[i] = solution[i * numCases];
+		}
+		
+		// Score each case the same way as HeatsinkMain.scoreHeatsink(), over its own heat source
+		//   except for a margin of 2 cells
+		final double[] scores = new double[numCases];
+		for (int k = 0; k < numCases; k++) {
+			double totalHeat = 0;
+			int count = 0;
+			for (int x = cases[k].minX + 2; x < cases[k].maxX - 2; x++) {
+				for (int z = cases[k].minZ + 2; z < cases[k].maxZ - 2; z++) {
+					totalHeat += solution[HeatsinkMain.idx(x, 0, z) * numCases + k];
+					count++;
+				}
+			}
+			scores[k] = totalHeat / count;
+		}
+		return scores;
+	}
+	
+	// Forget the heat of the previous solve, so that the next one starts from 0
+	static void resetHeat() {
+		Arrays.fill(solution, 0);
+	}
+	
+	// Compute the total conductance of every cell in this x slab, for every case
+	private static void computeDiagonal(byte[] cells, LoadCase[] cases, int x) {
+		final int numCases = cases.length;
+		final float border = HeatsinkMain.getConductance((byte)0, (byte)0);
+		for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+			for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+				final int idx = HeatsinkMain.idx(x, y, z);
+				final byte cell = cells[idx];
+				
+				float total = 0;
+				total += x > 0 ? HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x-1, y, z)]) : border;
+				total += x < HeatsinkMain.cellsX-1 ? HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x+1, y, z)]) : border;
+				total += y < HeatsinkMain.cellsY-1 ? HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x, y+1, z)]) : border;
+				total += z > 0 ? HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x, y, z-1)]) : border;
+				total += z < HeatsinkMain.cellsZ-1 ? HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x, y, z+1)]) : border;
+				if (y > 0) {
+					total += HeatsinkMain.getConductance(cell, cells[HeatsinkMain.idx(x, y-1, z)]);
+				}
+				
+				// The bottom is insulated under the heat source of each case
+				for (int k = 0; k < numCases; k++) {
+					final boolean isBottomBorder = y == 0 && !cases[k].isHeatSourceCell(x, y, z);
+					diagonal[idx * numCases + k] = total + (isBottomBorder ? border : 0);
+				}
+			}
+		}
+	}
+	
+	// Compute product = A * vector for every case, where A is the conductance matrix
+	private static void multiply(final byte[] cells, final float[] vector, final int numCases) {
+		ADISolver.runInParallel(new ADISolver.LineTask() {
+			public void run(int threadNum) {
+				for (int x = threadNum; x < HeatsinkMain.cellsX; x += HeatsinkMain.numThreads) {
+					multiplySlab(cells, vector, numCases, x);
+				}
+			}
+		});
+	}
+	
+	private static void multiplySlab(byte[] cells, float[] vector, int numCases, int x) {
+		for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+			for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+				final int idx = HeatsinkMain.idx(x, y, z);
+				final byte cell = cells[idx];
+				final int base = idx * numCases;
+				for (int k = 0; k < numCases; k++) {
+					product[base + k] = diagonal[base + k] * vector[base + k];
+				}
+				if (x > 0) {
+					subtractNeighbor(cell, cells, vector, numCases, base, HeatsinkMain.idx(x-1, y, z));
+				}
+				if (x < HeatsinkMain.cellsX-1) {
+					subtractNeighbor(cell, cells, vector, numCases, base, HeatsinkMain.idx(x+1, y, z));
+				}
+				if (y > 0) {
+					subtractNeighbor(cell, cells, vector, numCases, base, HeatsinkMain.idx(x, y-1, z));
+				}
+				if (y < HeatsinkMain.cellsY-1) {
+					subtractNeighbor(cell, cells, vector, numCases, base, HeatsinkMain.idx(x, y+1, z));
+				}
+				if (z > 0) {
+					subtractNeighbor(cell, cells, vector, numCases, base, HeatsinkMain.idx(x, y, z-1));
+				}
+				if (z < HeatsinkMain.cellsZ-1) {
+					subtractNeighbor(cell, cells, vector, numCases, base, HeatsinkMain.idx(x, y, z+1));
+				}
+			}
+		}
+	}
+	
+	// One conductance serves every case
+	private static void subtractNeighbor(byte cell, byte[] cells, float[] vector, int numCases, int base, int idx2) {
+		final float g = HeatsinkMain.getConductance(cell, cells[idx2]);
+		final int base2 = idx2 * numCases;
+		for (int k = 0; k < numCases; k++) {
+			product[base + k] -= g * vector[base2 + k];
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package heatsinkDesign;
+
+import java.util.Random;
+
+// This class steers the evolution operators toward the flips that are predicted to improve the
+//    score, instead of choosing uniformly among the cells on the metal-air boundary.
+// It keeps a predicted improvement for every column that evolveDesignForged can flip (with
+//    symmetry enforced), and optionally for every cell that evolveDesign3D can flip, computed
+//    for the last accepted design.
+// The predictions come either from an adjoint solve (see AdjointSolver), or more cheaply from
+//    the heat field alone: adding metal is favored where the boundary air is hot, and removing
+//    metal where the metal is cold and little heat flows through it.
+// Candidates are sampled in proportion to how much better their prediction is than the worst
+//    candidate's, plus a floor so that every candidate stays possible.
+// The predictions go stale as the design changes, but only the candidates are taken from the
+//    current design, so a stale prediction only makes the sampling less effective.
+
+public class MutationGuide {
+	static private final float explorationFloor = 0.1f;	// Weight of the worst candidate, relative to the best
+	static private final float[] columnImprovement = new float[HeatsinkMain.cellsX * HeatsinkMain.cellsZ];
+	static private final float[] cellImprovement = new float[HeatsinkMain.numCells];
+	static private boolean isReady = false;				// Whether there are column predictions
+	static private boolean hasCellPredictions = false;
+	
+	// Predict the improvement of flipping each column with an adjoint solve on the given design
+	//   and its equilibrium heat.
+	// Must not be called while another thread may be mutating a design.
+	static void updateFromAdjoint(byte[] cells, float[] heat) {
+		AdjointSolver.solve(cells, 1e-3);
+		final int y = HeatsinkMain.cellsY - HeatsinkMain.airPadding - 1;
+		for (int x = HeatsinkMain.airPadding; x < HeatsinkMain.cellsX/2; x++) {
+			for (int z = HeatsinkMain.airPadding; z < (HeatsinkMain.isSquareFootprint ? x : HeatsinkMain.cellsZ/2); z++) {
+				columnImprovement[x * HeatsinkMain.cellsZ + z] = AdjointSolver.getFlipImprovement(cells, heat,
+						x, HeatsinkMain.forgedBottomMargin, y, z, true);
+			}
+		}
+		isReady = true;
+		hasCellPredictions = false;
+	}
+	
+	// Estimate the improvement of flipping each cell and each column from the heat field alone,
+	//   in one parallel pass over the given design and its equilibrium heat.
+	// Boundary air is rated by its heat, and boundary metal by minus its heat plus the heat
+	//   difference to its metal neighbors (which is in proportion to the heat flowing through it).
+	// Must not be called while another thread may be mutating a design.
+	static void updateFromHeatFlux(final byte[] cells, final float[] heat) {
+		ADISolver.runInParallel(new ADISolver.LineTask() {
+			public void run(int threadNum) {
+				for (int x = threadNum; x < HeatsinkMain.cellsX; x += HeatsinkMain.numThreads) {
+					rateSlab(cells, heat, x);
+				}
+			}
+		});
+		isReady = true;
+		hasCellPredictions = true;
+	}
+	
+	// Rate the cells of this x slab, and add up the columns of evolveDesignForged
+	private static void rateSlab(byte[] cells, float[] heat, int x) {
+		final int topY = HeatsinkMain.cellsY - HeatsinkMain.airPadding - 1;
+		for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+			float columnTotal = 0;
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				final int idx = HeatsinkMain.idx(x, y, z);
+				final byte cell = cells[idx];
+				boolean isOnBoundary = false;
+				float metalHeatDifference = 0;
+				for (int i = 0; i < 6; i++) {
+					final int x2 = x + (i == 0 ? 1 : i == 1 ? -1 : 0);
+					final int y2 = y + (i == 2 ? 1 : i == 3 ? -1 : 0);
+					final int z2 = z + (i == 4 ? 1 : i == 5 ? -1 : 0);
+					if (x2 < 0 || x2 >= HeatsinkMain.cellsX || y2 < 0 || y2 >= HeatsinkMain.cellsY ||
+							z2 < 0 || z2 >= HeatsinkMain.cellsZ) {
+						continue;
+					}
+					final int idx2 = HeatsinkMain.idx(x2, y2, z2);
+					if (cells[idx2] != cell) {
+						isOnBoundary = true;
+					} else if (cell == 1) {
+						metalHeatDifference += Math.abs(heat[idx] - heat[idx2]);
+					}
+				}
+				
+				float improvement = 0;
+				if (isOnBoundary) {
+					improvement = cell == 0 ? heat[idx] : -(heat[idx] + metalHeatDifference);
+				}
+				cellImprovement[idx] = improvement;
+				if (y >= HeatsinkMain.forgedBottomMargin && y <= topY) {
+					columnTotal += improvement;
+				}
+			}
+			columnImprovement[x * HeatsinkMain.cellsZ + z] = columnTotal;
+		}
+	}
+	
+	// Forget the predictions, so that mutations are uniform again until the next update
+	static void reset() {
+		isReady = false;
+		hasCellPredictions = false;
+	}
+	
+	static boolean isReady() {
+		return isReady;
+	}
+	
+	static boolean hasCellPredictions() {
+		return hasCellPredictions;
+	}
+	
+	// Choose a column on the metal-air boundary of the given design, where the top cell is in the
+	//   given state (or either state, if state is -1).
+	// Returns x * cellsZ + z.  If there are no such columns, any column may be returned.
+	static int sampleColumn(byte[] cells, Random random, int state) {
+		final int y = HeatsinkMain.cellsY - HeatsinkMain.airPadding - 1;
+		final int[] candidates = new int[HeatsinkMain.cellsX * HeatsinkMain.cellsZ];
+		final float[] candidateImprovement = new float[candidates.length];
+		int count = 0;
+		float minImprovement = Float.MAX_VALUE;
+		float maxImprovement = -Float.MAX_VALUE;
+		for (int x = HeatsinkMain.airPadding; x < HeatsinkMain.cellsX/2; x++) {
+			for (int z = HeatsinkMain.airPadding; z < (HeatsinkMain.isSquareFootprint ? x : HeatsinkMain.cellsZ/2); z++) {
+				final byte cell = cells[HeatsinkMain.idx(x, y, z)];
+				if ((state >= 0 && cell != state) || (cells[HeatsinkMain.idx(x+1, y, z)] == cell &&
+						cells[HeatsinkMain.idx(x-1, y, z)] == cell && cells[HeatsinkMain.idx(x, y, z+1)] == cell &&
+						cells[HeatsinkMain.idx(x, y, z-1)] == cell)) {
+					continue;
+				}
+				final int column = x * HeatsinkMain.cellsZ + z;
+				candidates[count] = column;
+				candidateImprovement[count++] = columnImprovement[column];
+				minImprovement = Math.min(minImprovement, columnImprovement[column]);
+				maxImprovement = Math.max(maxImprovement, columnImprovement[column]);
+			}
+		}
+		if (count == 0) {
+			return (HeatsinkMain.airPadding + random.nextInt(HeatsinkMain.cellsX/2 - HeatsinkMain.airPadding)) *
+					HeatsinkMain.cellsZ + HeatsinkMain.airPadding;
+		}
+		return sampleCandidate(candidates, candidateImprovement, count, minImprovement, maxImprovement, random);
+	}
+	
+	// Choose a cell that evolveDesign3D could flip with symmetry enforced, in the given state
+	//   (or either state, if state is -1).
+	// Returns (x * cellsY + y) * cellsZ + z.  If there are no such cells, -1 is returned.
+	static int sampleCell(byte[] cells, Random random, int state) {
+		final int airPadding = HeatsinkMain.airPadding;
+		final int[] candidates = new int[HeatsinkMain.cellsX * HeatsinkMain.cellsY * HeatsinkMain.cellsZ / 4];
+		final float[] candidateImprovement = new float[candidates.length];
+		int count = 0;
+		float minImprovement = Float.MAX_VALUE;
+		float maxImprovement = -Float.MAX_VALUE;
+		for (int x = airPadding; x < HeatsinkMain.cellsX/2; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY - airPadding; y++) {
+				for (int z = airPadding; z < (HeatsinkMain.isSquareFootprint ? x : HeatsinkMain.cellsZ/2); z++) {
+					final int idx = HeatsinkMain.idx(x, y, z);
+					final byte cell = cells[idx];
+					
+					// Cells on the boundary, except within the heat source (as evolveDesign3D excludes them)
+					if ((state >= 0 && cell != state) || (y == 0 && x > airPadding*1.3 &&
+							x < HeatsinkMain.cellsX - airPadding*1.3 - 1 && z > airPadding*1.3 &&
+							z < HeatsinkMain.cellsZ - airPadding*1.3 - 1)) {
+						continue;
+					}
+					if (cells[HeatsinkMain.idx(x+1, y, z)] == cell && cells[HeatsinkMain.idx(x-1, y, z)] == cell &&
+							cells[HeatsinkMain.idx(x, y+1, z)] == cell && (y == 0 || cells[HeatsinkMain.idx(x, y-1, z)] == cell) &&
+							cells[HeatsinkMain.idx(x, y, z+1)] == cell && cells[HeatsinkMain.idx(x, y, z-1)] == cell) {
+						continue;
+					}
+					candidates[count] = (x * HeatsinkMain.cellsY + y) * HeatsinkMain.cellsZ + z;
+					candidateImprovement[count++] = cellImprovement[idx];
+					minImprovement = Math.min(minImprovement, cellImprovement[idx]);
+					maxImprovement = Math.max(maxImprovement, cellImprovement[idx]);
+				}
+			}
+		}
+		if (count == 0) {
+			return -1;
+		}
+		return sampleCandidate(candidates, candidateImprovement, count, minImprovement, maxImprovement, random);
+	}
+	
+	// Weigh each candidate by its improvement over the worst, with the floor added to every candidate
+	private static int sampleCandidate(int[] candidates, float[] improvement, int count, float minImprovement,
+			float maxImprovement, Random random) {
+		final float floor = Math.max(explorationFloor * (maxImprovement - minImprovement), Float.MIN_NORMAL);
+		double totalWeight = 0;
+		for (int k = 0; k < count; k++) {
+			totalWeight += improvement[k] - minImprovement + floor;
+		}
+		double target = random.nextDouble() * totalWeight;
+		for (int k = 0; k < count; k++) {
+			target -= improvement[k] - minImprovement + floor;
+			if (target < 0) {
+				return candidates[k];
+			}
+		}
+		return candidates[count - 1];
+	}
+}
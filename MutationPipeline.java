@@ -0,0 +1,89 @@
+package heatsinkDesign;
+
+import java.util.Random;
+
+// This class prepares the next candidate design on a separate thread while
+//    the current candidate is being simulated.
+// The outcome of the simulation is not known yet, so one candidate is prepared
+//    for each outcome (mutate the parent if rejected, or the child if accepted),
+//    and the wrong one is thrown away.
+
+public class MutationPipeline {
+	private final byte[] parentCells = new byte[HeatsinkMain.numCells];
+	private final byte[] childCells = new byte[HeatsinkMain.numCells];
+	private final byte[] parentBoundary = new byte[HeatsinkMain.numCells];
+	private final byte[] childBoundary = new byte[HeatsinkMain.numCells];
+	private final boolean[][][] table = new boolean[HeatsinkMain.cellsX][HeatsinkMain.cellsY][HeatsinkMain.cellsZ];
+	private Thread thread = null;
+	
+	// Timing statistics (in nanoseconds)
+	private volatile long parentPrepareTime = 0;
+	private volatile long childPrepareTime = 0;
+	private long totalUsedPrepareTime = 0;
+	private long totalDiscardedPrepareTime = 0;
+	private long totalWaitTime = 0;
+	private int candidateCount = 0;
+	
+	// Start preparing both candidates.  The given arrays are copied immediately,
+	//   so they may be modified after this returns.
+	void start(byte[] parent, byte[] child, long seed) {
+		System.arraycopy(parent, 0, parentCells, 0, HeatsinkMain.numCells);
+		System.arraycopy(child, 0, childCells, 0, HeatsinkMain.numCells);
+		
+		// Seeded from the main random generator so that runs remain repeatable
+		final Random random = new Random(seed);
+		
+		thread = new Thread(new Runnable() {
+			public void run() {
+				final long startTime = System.nanoTime();
+				
+				// The parent's candidate is used if this one is rejected, so it mustn't be the same mutation
+				final long childId = HeatsinkMain.useTabuList ? TabuList.getMutationId(parentCells, childCells) : 0;
+				HeatsinkMain.mutateDesign(parentCells, random, table, childId);
+				HeatsinkMain.computeBoundaryCells(parentCells, parentBoundary);
+				final long midTime = System.nanoTime();
+				HeatsinkMain.mutateDesign(childCells, random, table);
+				HeatsinkMain.computeBoundaryCells(childCells, childBoundary);
+				parentPrepareTime = midTime - startTime;
+				childPrepareTime = System.nanoTime() - midTime;
+			}
+		});
+		thread.start();
+	}
+	
+	// Wait for the candidates, then copy the one for the given outcome into the output arrays
+	void takeCandidate(boolean wasAccepted, byte[] cells, byte[] boundary) {
+		final long waitStartTime = System.nanoTime();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		totalWaitTime += System.nanoTime() - waitStartTime;
+		
+		if (wasAccepted) {
+			System.arraycopy(childCells, 0, cells, 0, HeatsinkMain.numCells);
+			System.arraycopy(childBoundary, 0, boundary, 0, HeatsinkMain.numCells);
+			totalUsedPrepareTime += childPrepareTime;
+			totalDiscardedPrepareTime += parentPrepareTime;
+		} else {
+			System.arraycopy(parentCells, 0, cells, 0, HeatsinkMain.numCells);
+			System.arraycopy(parentBoundary, 0, boundary, 0, HeatsinkMain.numCells);
+			totalUsedPrepareTime += parentPrepareTime;
+			totalDiscardedPrepareTime += childPrepareTime;
+		}
+		candidateCount++;
+	}
+	
+	// Print how much of the mutation work was hidden behind the simulation
+	void printStatistics() {
+		if (candidateCount == 0) {
+			return;
+		}
+		final double usedMs = totalUsedPrepareTime / 1e6 / candidateCount;
+		final double waitMs = totalWaitTime / 1e6 / candidateCount;
+		final double discardedMs = totalDiscardedPrepareTime / 1e6 / candidateCount;
+		HeatsinkMain.print(String.format("Pipeline: prepare %.1f ms, waited %.1f ms, hidden %.1f ms, " +
+				"discarded %.1f ms per candidate", usedMs, waitMs, Math.max(0, usedMs - waitMs), discardedMs));
+	}
+}
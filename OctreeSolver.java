@@ -0,0 +1,336 @@
+package heatsinkDesign;
+
+import java.util.Arrays;
+
+// This class finds the equilibrium heat on an adaptive octree mesh.
+// Cells near the metal-air boundary and the heat source are kept at full resolution, while
+//    regions of uniform air or uniform metal are merged into larger cubic leaves (2, 4 or 8 cells wide).
+// A leaf is only merged if no other material is within its own width of it, so leaf sizes
+//    grow gradually with the distance from the surface.
+// The heat flow through each shared face is added to one leaf and taken from the other,
+//    so heat is conserved across refinement levels.
+// With every leaf one cell wide, this is the same cycle-averaged system that ADISolver solves.
+// The system is symmetric positive definite, so it is solved with the conjugate gradient method.
+
+public class OctreeSolver {
+	static private final int maxLeafSize = 8;			// Width of the largest leaves (a power of 2)
+	static private final int maxIterations = 20000;
+	static int lastIterations = 0;		// Number of iterations the last solve took
+	static int lastLeafCount = 0;		// Number of leaves in the last solve
+	
+	// Per-leaf data, indexed by leaf number
+	static private int leafCount = 0;
+	static private int[] leafX = new int[0];			// Lowest corner of each leaf
+	static private int[] leafY = new int[0];
+	static private int[] leafZ = new int[0];
+	static private int[] leafSize = new int[0];			// Width of each leaf in cells
+	static private float[] diagonal = new float[0];		// Total conductance of each leaf, including the border
+	static private float[] source = new float[0];		// Heat added to each leaf
+	
+	// Links between adjacent leaves, one per pair of leaves that share faces
+	static private int linkCount = 0;
+	static private int[] linkLeaf1 = new int[0];
+	static private int[] linkLeaf2 = new int[0];
+	static private float[] linkConductance = new float[0];
+	
+	static private final int[] leafOf = new int[HeatsinkMain.numCells];	// Leaf containing each cell
+	
+	// Number of metal cells and heat source cells in each box [0,x) x [0,y) x [0,z)
+	static private final int[] metalSums = new int[(HeatsinkMain.cellsX+1) * (HeatsinkMain.cellsY+1) * (HeatsinkMain.cellsZ+1)];
+	static private final int[] sourceSums = new int[metalSums.length];
+	
+	// Solve for the equilibrium of the given design, starting from the given heat.
+	// Every cell ends up with the heat of its leaf.
+	// Returns the score once the relative residual is less than tolerance.
+	static double solve(byte[] cells, float[] heat, double tolerance) {
+		buildLeaves(cells);
+		buildLinks(cells);
+		final int count = leafCount;
+		
+		// Jacobi-preconditioned conjugate gradient
+		final double[] solution = new double[count];
+		final double[] residual = new double[count];
+		final double[] preconditioned = new double[count];
+		final double[] direction = new double[count];
+		final double[] product = new double[count];
+		
+		// Start from the average heat of the cells in each leaf
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+					final int idx = HeatsinkMain.idx(x, y, z);
+					solution[leafOf[idx]] += heat[idx];
+				}
+			}
+		}
+		for (int k = 0; k < count; k++) {
+			solution[k] /= leafSize[k] * leafSize[k] * leafSize[k];
+		}
+		multiply(solution, product, count);
+		double sourceNorm = 0;
+		double rz = 0;
+		for (int k = 0; k < count; k++) {
+			residual[k] = source[k] - product[k];
+			preconditioned[k] = residual[k] / diagonal[k];
+			direction[k] = preconditioned[k];
+			rz += residual[k] * preconditioned[k];
+			sourceNorm += source[k] * source[k];
+		}
+		sourceNorm = Math.sqrt(sourceNorm);
+		
+		int iteration = 0;
+		for (; iteration < maxIterations; iteration++) {
+			double residualNorm = 0;
+			for (int k = 0; k < count; k++) {
+				residualNorm += residual[k] * residual[k];
+			}
+			if (Math.sqrt(residualNorm) < tolerance * sourceNorm) {
+				break;
+			}
+			
+			multiply(direction, product, count);
+			double directionProduct = 0;
+			for (int k = 0; k < count; k++) {
+				directionProduct += direction[k] * product[k];
+			}
+			final double alpha = rz / directionProduct;
+			
+			double newRz = 0;
+			for (int k = 0; k < count; k++) {
+				solution[k] += alpha * direction[k];
+				residual[k] -= alpha * product[k];
+				preconditioned[k] = residual[k] / diagonal[k];
+				newRz += residual[k] * preconditioned[k];
+			}
+			final double beta = newRz / rz;
+			rz = newRz;
+			for (int k = 0; k < count; k++) {
+				direction[k] = preconditioned[k] + beta * direction[k];
+			}
+		}
+		if (iteration == maxIterations) {
+			System.err.println("WARNING: Octree solver did not converge");
+		}
+		lastIterations = iteration;
+		lastLeafCount = count;
+		
+		// Write the result back into the full grid
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+					final int idx = HeatsinkMain.idx(x, y, z);
+					heat[idx] = (float)solution[leafOf[idx]];
+				}
+			}
+		}
+		return HeatsinkMain.scoreHeatsink(heat);
+	}
+	
+	// Compute product = A * vector, where A is the conductance matrix between leaves
+	private static void multiply(double[] vector, double[] product, int count) {
+		for (int k = 0; k < count; k++) {
+			product[k] = diagonal[k] * vector[k];
+		}
+		for (int l = 0; l < linkCount; l++) {
+			final int leaf1 = linkLeaf1[l];
+			final int leaf2 = linkLeaf2[l];
+			product[leaf1] -= linkConductance[l] * vector[leaf2];
+			product[leaf2] -= linkConductance[l] * vector[leaf1];
+		}
+	}
+	
+	// Split the domain into blocks of the largest leaf size, then split each block
+	//   recursively until its parts can be merged into leaves
+	private static void buildLeaves(byte[] cells) {
+		computeSums(cells);
+		leafCount = 0;
+		for (int x = 0; x < HeatsinkMain.cellsX; x += maxLeafSize) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y += maxLeafSize) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z += maxLeafSize) {
+					addNode(x, y, z, maxLeafSize);
+				}
+			}
+		}
+	}
+	
+	private static void addNode(int x, int y, int z, int size) {
+		if (x >= HeatsinkMain.cellsX || y >= HeatsinkMain.cellsY || z >= HeatsinkMain.cellsZ) {
+			return; // Entirely outside the domain
+		}
+		
+		if (size > 1 && !canMerge(x, y, z, size)) {
+			final int half = size / 2;
+			for (int i = 0; i < 8; i++) {
+				addNode(x + (i & 1) * half, y + ((i >> 1) & 1) * half, z + ((i >> 2) & 1) * half, half);
+			}
+			return;
+		}
+		
+		if (leafCount == leafSize.length) {
+			final int newLength = Math.max(1024, leafCount * 2);
+			leafX = Arrays.copyOf(leafX, newLength);
+			leafY = Arrays.copyOf(leafY, newLength);
+			leafZ = Arrays.copyOf(leafZ, newLength);
+			leafSize = Arrays.copyOf(leafSize, newLength);
+			diagonal = Arrays.copyOf(diagonal, newLength);
+			source = Arrays.copyOf(source, newLength);
+		}
+		leafX[leafCount] = x;
+		leafY[leafCount] = y;
+		leafZ[leafCount] = z;
+		leafSize[leafCount] = size;
+		diagonal[leafCount] = 0;
+		source[leafCount] = 0;
+		for (int x2 = x; x2 < x + size; x2++) {
+			for (int y2 = y; y2 < y + size; y2++) {
+				for (int z2 = z; z2 < z + size; z2++) {
+					leafOf[HeatsinkMain.idx(x2, y2, z2)] = leafCount;
+					if (HeatsinkMain.isHeatSourceCell(x2, y2, z2)) {
+						source[leafCount] += HeatsinkMain.heatSourceHeatPerCell;
+					}
+				}
+			}
+		}
+		leafCount++;
+	}
+	
+	// Whether this block fits in the domain, and it and the cells within its own width
+	//   around it are all the same material, with no heat source
+	private static boolean canMerge(int x, int y, int z, int size) {
+		if (x + size > HeatsinkMain.cellsX || y + size > HeatsinkMain.cellsY || z + size > HeatsinkMain.cellsZ) {
+			return false;
+		}
+		final int halo = size;
+		final int x1 = Math.max(0, x - halo);
+		final int y1 = Math.max(0, y - halo);
+		final int z1 = Math.max(0, z - halo);
+		final int x2 = Math.min(HeatsinkMain.cellsX, x + size + halo);
+		final int y2 = Math.min(HeatsinkMain.cellsY, y + size + halo);
+		final int z2 = Math.min(HeatsinkMain.cellsZ, z + size + halo);
+		
+		final int metal = getBoxSum(metalSums, x1, y1, z1, x2, y2, z2);
+		final int volume = (x2 - x1) * (y2 - y1) * (z2 - z1);
+		return getBoxSum(sourceSums, x1, y1, z1, x2, y2, z2) == 0 && (metal == 0 || metal == volume);
+	}
+	
+	// Build the summed-volume tables, so that any box can be checked in constant time
+	private static void computeSums(byte[] cells) {
+		for (int x = 0; x <= HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y <= HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z <= HeatsinkMain.cellsZ; z++) {
+					final int i = sumIdx(x, y, z);
+					if (x == 0 || y == 0 || z == 0) {
+						metalSums[i] = 0;
+						sourceSums[i] = 0;
+						continue;
+					}
+					final int metal = cells[HeatsinkMain.idx(x-1, y-1, z-1)];
+					final int source = HeatsinkMain.isHeatSourceCell(x-1, y-1, z-1) ? 1 : 0;
+					metalSums[i] = metal + getSumWithoutCorner(metalSums, x, y, z);
+					sourceSums[i] = source + getSumWithoutCorner(sourceSums, x, y, z);
+				}
+			}
+		}
+	}
+	
+	// Number of cells counted in the box [x1,x2) x [y1,y2) x [z1,z2), by inclusion-exclusion over its corners
+	private static int getBoxSum(int[] sums, int x1, int y1, int z1, int x2, int y2, int z2) {
+		return sums[sumIdx(x2, y2, z2)]
+				- sums[sumIdx(x1, y2, z2)] - sums[sumIdx(x2, y1, z2)] - sums[sumIdx(x2, y2, z1)]
+				+ sums[sumIdx(x2, y1, z1)] + sums[sumIdx(x1, y2, z1)] + sums[sumIdx(x1, y1, z2)]
+				- sums[sumIdx(x1, y1, z1)];
+	}
+	
+	// Number of cells counted in the box [0,x) x [0,y) x [0,z), except for its last cell
+	private static int getSumWithoutCorner(int[] sums, int x, int y, int z) {
+		return sums[sumIdx(x-1, y, z)] + sums[sumIdx(x, y-1, z)] + sums[sumIdx(x, y, z-1)]
+				- sums[sumIdx(x-1, y-1, z)] - sums[sumIdx(x-1, y, z-1)] - sums[sumIdx(x, y-1, z-1)]
+				+ sums[sumIdx(x-1, y-1, z-1)];
+	}
+	
+	private static int sumIdx(int x, int y, int z) {
+		return (x * (HeatsinkMain.cellsY+1) + y) * (HeatsinkMain.cellsZ+1) + z;
+	}
+	
+	// Link each leaf to the leaves across its three upper faces, and add the conductance
+	//   to the ambient air on all faces that are on the border of the domain.
+	// Each pair of touching cells conducts like neighboring cells of the uniform grid, but over
+	//   the distance between the leaf centers.
+	private static void buildLinks(byte[] cells) {
+		linkCount = 0;
+		final int[] faceLeaves = new int[maxLeafSize * maxLeafSize];
+		final float[] faceConductances = new float[maxLeafSize * maxLeafSize];
+		final int[] domainSize = {HeatsinkMain.cellsX, HeatsinkMain.cellsY, HeatsinkMain.cellsZ};
+		final int[] corner = new int[3];
+		final int[] cell = new int[3];
+		
+		for (int k = 0; k < leafCount; k++) {
+			final int size = leafSize[k];
+			corner[0] = leafX[k];
+			corner[1] = leafY[k];
+			corner[2] = leafZ[k];
+			
+			for (int axis = 0; axis < 3; axis++) {
+				final int axisA = axis == 0 ? 1 : 0;
+				final int axisB = axis == 2 ? 1 : 2;
+				int faceCount = 0;
+				
+				for (int a = 0; a < size; a++) {
+					for (int b = 0; b < size; b++) {
+						cell[axisA] = corner[axisA] + a;
+						cell[axisB] = corner[axisB] + b;
+						
+						// The lower face only touches the border (other leaves link to it through their upper face)
+						cell[axis] = corner[axis];
+						if (cell[axis] == 0) {
+							diagonal[k] += HeatsinkMain.getBorderConductance(cell[0], cell[1], cell[2]) * 2f / (size + 1);
+						}
+						
+						// Upper face
+						cell[axis] = corner[axis] + size - 1;
+						final int idx = HeatsinkMain.idx(cell[0], cell[1], cell[2]);
+						if (cell[axis] == domainSize[axis] - 1) {
+							diagonal[k] += HeatsinkMain.getBorderConductance(cell[0], cell[1], cell[2]) * 2f / (size + 1);
+							continue;
+						}
+						cell[axis]++;
+						final int idx2 = HeatsinkMain.idx(cell[0], cell[1], cell[2]);
+						final int neighbor = leafOf[idx2];
+						final float g = HeatsinkMain.getConductance(cells[idx], cells[idx2]) * 2f / (size + leafSize[neighbor]);
+						
+						// Combine the faces shared with the same leaf into one link
+						int f = 0;
+						while (f < faceCount && faceLeaves[f] != neighbor) {
+							f++;
+						}
+						if (f == faceCount) {
+							faceLeaves[f] = neighbor;
+							faceConductances[f] = 0;
+							faceCount++;
+						}
+						faceConductances[f] += g;
+					}
+				}
+				
+				for (int f = 0; f < faceCount; f++) {
+					addLink(k, faceLeaves[f], faceConductances[f]);
+				}
+			}
+		}
+	}
+	
+	private static void addLink(int leaf1, int leaf2, float conductance) {
+		if (linkCount == linkConductance.length) {
+			final int newLength = Math.max(1024, linkCount * 2);
+			linkLeaf1 = Arrays.copyOf(linkLeaf1, newLength);
+			linkLeaf2 = Arrays.copyOf(linkLeaf2, newLength);
+			linkConductance = Arrays.copyOf(linkConductance, newLength);
+		}
+		linkLeaf1[linkCount] = leaf1;
+		linkLeaf2[linkCount] = leaf2;
+		linkConductance[linkCount] = conductance;
+		linkCount++;
+		diagonal[leaf1] += conductance;
+		diagonal[leaf2] += conductance;
+	}
+}
@@ -0,0 +1,136 @@
+package heatsinkDesign;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// This class searches with parallel tempering instead of a strict greedy descent.
+// Several replicas of the design each evolve at their own temperature with the usual mutations.
+//    A candidate that is worse by d (relative to the initial score) is accepted with probability
+//    exp(-d / temperature), so the coldest replica (temperature 0) is greedy and the hotter ones can
+//    climb out of local optima.
+// After every sweep (one candidate per replica), neighboring replicas exchange their designs with
+//    the Metropolis probability min(1, exp((e1 - e2) * (1/t1 - 1/t2))), which passes better designs
+//    down to the colder replicas.
+// The acceptance threshold of each candidate is drawn before it is simulated, so that racing still
+//    only stops candidates that would be rejected.
+// The simulation state is shared, so the replicas take turns simulating (each with all of the cores,
+//    or the GPU).  Mutation guides and the surrogate follow a single design, so they aren't used here.
+
+public class ParallelTempering {
+	static private final double[] temperatures = {0, 2e-4, 5e-4, 1.2e-3}; // Temperature of each replica
+	static private final int printInterval = 20;	// Sweeps between progress reports in main()
+	
+	static private Replica[] replicas;
+	static private byte[] bestCells;				// Best design found by any replica
+	static private double bestScore;
+	
+	// Optimize the current design for the given number of candidates (over all replicas), then leave
+	//   the best design found in cellEnabled.
+	// Returns the same as HeatsinkMain.optimizeDesign(), with the best score as the final score.
+	static double[] optimize(Random random, int numCandidates, double targetScore, boolean printProgress) {
+		MutationGuide.reset();
+		final long startTime = HeatsinkMain.getProcessCpuTime();
+		final long startWallTime = System.nanoTime();
+		final int numCells = HeatsinkMain.numCells;
+		Arrays.fill(HeatsinkMain.cellHeat, 0);
+		final double initialScore = HeatsinkMain.runSimulation(true, Double.MAX_VALUE);
+		
+		replicas = new Replica[temperatures.length];
+		for (int i = 0; i < replicas.length; i++) {
+			replicas[i] = new Replica(temperatures[i], HeatsinkMain.cellEnabled.clone(),
+					HeatsinkMain.cellHeat.clone(), initialScore);
+		}
+		bestCells = HeatsinkMain.cellEnabled.clone();
+		bestScore = initialScore;
+		
+		double timeToTarget = bestScore <= targetScore ? 0 : -1;
+		double wallTimeToTarget = timeToTarget;
+		int candidate = 0;
+		int accepted = 0;
+		for (int sweep = 1; candidate < numCandidates; sweep++) {
+			for (int i = 0; i < replicas.length && candidate < numCandidates; i++, candidate++) {
+				final Replica replica = replicas[i];
+				if (step(replica, random, initialScore)) {
+					accepted++;
+				}
+				if (replica.score < bestScore) {
+					bestScore = replica.score;
+					System.arraycopy(replica.cellEnabled, 0, bestCells, 0, numCells);
+					if (timeToTarget < 0 && bestScore <= targetScore) {
+						timeToTarget = (HeatsinkMain.getProcessCpuTime() - startTime) / 1e9;
+						wallTimeToTarget = (System.nanoTime() - startWallTime) / 1e9;
+					}
+				}
+			}
+			
+			// Offer each hotter replica's design to the next colder replica
+			for (int i = replicas.length - 2; i >= 0; i--) {
+				trySwap(replicas[i], replicas[i+1], random, initialScore);
+			}
+			
+			if (printProgress && sweep % printInterval == 0) {
+				printStatistics(initialScore);
+			}
+		}
+		
+		System.arraycopy(bestCells, 0, HeatsinkMain.cellEnabled, 0, numCells);
+		HeatsinkMain.preprocessDesign();
+		return new double[] {initialScore, bestScore, accepted, (HeatsinkMain.getProcessCpuTime() - startTime) / 1e9,
+				timeToTarget, wallTimeToTarget};
+	}
+	
+	// Simulate one candidate of a replica, and accept it by the replica's temperature.
+	// Returns whether it was accepted.
+	private static boolean step(Replica replica, Random random, double referenceScore) {
+		final int numCells = HeatsinkMain.numCells;
+		System.arraycopy(replica.cellEnabled, 0, HeatsinkMain.cellEnabled, 0, numCells);
+		HeatsinkMain.mutateDesign(HeatsinkMain.cellEnabled, random, HeatsinkMain.disconnectedComponentTable);
+		HeatsinkMain.preprocessDesign();
+		System.arraycopy(replica.cellHeat, 0, HeatsinkMain.cellHeat, 0, numCells);
+		
+		// Metropolis acceptance, decided by a threshold drawn in advance
+		final double threshold = replica.temperature > 0 ?
+				replica.score - replica.temperature * referenceScore * Math.log(1 - random.nextDouble()) : replica.score;
+		final double newScore = HeatsinkMain.runSimulation(false, threshold);
+		replica.candidateCount++;
+		if (newScore > threshold) {
+			return false;
+		}
+		
+		System.arraycopy(HeatsinkMain.cellEnabled, 0, replica.cellEnabled, 0, numCells);
+		System.arraycopy(HeatsinkMain.cellHeat, 0, replica.cellHeat, 0, numCells);
+		replica.score = newScore;
+		replica.acceptedCount++;
+		return true;
+	}
+	
+	// Exchange the designs of two replicas (colder first) by the Metropolis criterion
+	private static void trySwap(Replica colder, Replica hotter, Random random, double referenceScore) {
+		final double improvement = (colder.score - hotter.score) / referenceScore;
+		final boolean accept = improvement >= 0 || (colder.temperature > 0 &&
+				random.nextDouble() < Math.exp(improvement * (1 / colder.temperature - 1 / hotter.temperature)));
+		if (!accept) {
+			return;
+		}
+		
+		final byte[] cells = colder.cellEnabled;
+		final float[] heat = colder.cellHeat;
+		final double score = colder.score;
+		colder.cellEnabled = hotter.cellEnabled;
+		colder.cellHeat = hotter.cellHeat;
+		colder.score = hotter.score;
+		hotter.cellEnabled = cells;
+		hotter.cellHeat = heat;
+		hotter.score = score;
+		colder.swapCount++;
+	}
+	
+	static void printStatistics(double initialScore) {
+		HeatsinkMain.print(String.format("Best score: %.5f (initial %.5f)", bestScore, initialScore));
+		for (Replica replica : replicas) {
+			HeatsinkMain.print(String.format("  Temperature %.1e: score %.5f, %d of %d accepted, %d swaps with the " +
+					"next hotter", replica.temperature, replica.score, replica.acceptedCount, replica.candidateCount,
+					replica.swapCount));
+		}
+	}
+}
@@ -346,17 +346,17 @@ public class Renderer {
 		final float width = 1.0f;
 		final float cullingThreshold = 0.15f;
 		
-		gl.glTranslatef(-HeatsinkMain.cellsWide/2f,
-				-HeatsinkMain.cellsWide/2f,
-				-HeatsinkMain.cellsWide/2f);
+		gl.glTranslatef(-HeatsinkMain.cellsX/2f,
+				-HeatsinkMain.cellsY/2f,
+				-HeatsinkMain.cellsZ/2f);
 		
 		gl.glPushMatrix();
 		
 		/* Render the heat sink only
 		gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, new float[] {0.6f, 0.6f, 0.6f}, 0);
-		for (int x = 0; x < HeatsinkMain.cellsWide; x++) {
-			for (int y = 0; y < HeatsinkMain.cellsWide; y++) {
-				for (int z = 0; z < HeatsinkMain.cellsWide; z++) {
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
 					final int i = HeatsinkMain.idx(x, y, z);
 					
 					// If this cell is not enabled, then don't render it
@@ -429,21 +429,21 @@ public class Renderer {
 		//*/
 		
 		/* Render a cross-section of the simulation
-		final int endZ = HeatsinkMain.cellsWide/2;
-		for (int x = 0; x < HeatsinkMain.cellsWide; x++) {
-			for (int y = 0; y < HeatsinkMain.cellsWide; y++) {
+		final int endZ = HeatsinkMain.cellsZ/2;
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
 				for (int z = 0; z < endZ; z++) {
 					final int i = HeatsinkMain.idx(x, y, z);
 					
 					// If this cell is not on the visualization edge, then don't render it
-					if (x == 0 || y == 0 || z == 0 || x == HeatsinkMain.cellsWide-1
-							|| y == HeatsinkMain.cellsWide-1 || z == endZ-1) {
+					if (x == 0 || y == 0 || z == 0 || x == HeatsinkMain.cellsX-1
+							|| y == HeatsinkMain.cellsY-1 || z == endZ-1) {
 		
 		//*/
 		//* Render the surface temperature of the heat sink
-		for (int x = 0; x < HeatsinkMain.cellsWide; x++) {
-			for (int y = 0; y < HeatsinkMain.cellsWide; y++) {
-				for (int z = 0; z < HeatsinkMain.cellsWide; z++) {
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
 					final int i = HeatsinkMain.idx(x, y, z);
 					
 					// If this cell is not on the visualization edge, then don't render it
@@ -530,23 +530,23 @@ public class Renderer {
 		// Draw the bounding box around the model
 		gl.glBegin(GL2.GL_LINE_STRIP);
 		gl.glVertex3f(0, 0, 0);
-		gl.glVertex3f(0, HeatsinkMain.cellsWide, 0);
-		gl.glVertex3f(HeatsinkMain.cellsWide, HeatsinkMain.cellsWide, 0);
-		gl.glVertex3f(HeatsinkMain.cellsWide, 0, 0);
+		gl.glVertex3f(0, HeatsinkMain.cellsY, 0);
+		gl.glVertex3f(HeatsinkMain.cellsX, HeatsinkMain.cellsY, 0);
+		gl.glVertex3f(HeatsinkMain.cellsX, 0, 0);
 		gl.glVertex3f(0, 0, 0);
-		gl.glVertex3f(0, 0, HeatsinkMain.cellsWide);
-		gl.glVertex3f(0, HeatsinkMain.cellsWide, HeatsinkMain.cellsWide);
-		gl.glVertex3f(HeatsinkMain.cellsWide, HeatsinkMain.cellsWide, HeatsinkMain.cellsWide);
-		gl.glVertex3f(HeatsinkMain.cellsWide, 0, HeatsinkMain.cellsWide);
-		gl.glVertex3f(0, 0, HeatsinkMain.cellsWide);
+		gl.glVertex3f(0, 0, HeatsinkMain.cellsZ);
+		gl.glVertex3f(0, HeatsinkMain.cellsY, HeatsinkMain.cellsZ);
+		gl.glVertex3f(HeatsinkMain.cellsX, HeatsinkMain.cellsY, HeatsinkMain.cellsZ);
+		gl.glVertex3f(HeatsinkMain.cellsX, 0, HeatsinkMain.cellsZ);
+		gl.glVertex3f(0, 0, HeatsinkMain.cellsZ);
 		gl.glEnd();
 		gl.glBegin(GL2.GL_LINES);
-		gl.glVertex3f(0, HeatsinkMain.cellsWide, 0);
-		gl.glVertex3f(0, HeatsinkMain.cellsWide, HeatsinkMain.cellsWide);
-		gl.glVertex3f(HeatsinkMain.cellsWide, HeatsinkMain.cellsWide, 0);
-		gl.glVertex3f(HeatsinkMain.cellsWide, HeatsinkMain.cellsWide, HeatsinkMain.cellsWide);
-		gl.glVertex3f(HeatsinkMain.cellsWide, 0, 0);
-		gl.glVertex3f(HeatsinkMain.cellsWide, 0, HeatsinkMain.cellsWide);
+		gl.glVertex3f(0, HeatsinkMain.cellsY, 0);
+		gl.glVertex3f(0, HeatsinkMain.cellsY, HeatsinkMain.cellsZ);
+		gl.glVertex3f(HeatsinkMain.cellsX, HeatsinkMain.cellsY, 0);
+		gl.glVertex3f(HeatsinkMain.cellsX, HeatsinkMain.cellsY, HeatsinkMain.cellsZ);
+		gl.glVertex3f(HeatsinkMain.cellsX, 0, 0);
+		gl.glVertex3f(HeatsinkMain.cellsX, 0, HeatsinkMain.cellsZ);
 		gl.glEnd();
 		
 
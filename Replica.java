@@ -0,0 +1,21 @@
+package heatsinkDesign;
+
+// This class is a data structure for one replica of the parallel tempering search:
+//    a design with its heat field and score, at a fixed temperature.
+
+public class Replica {
+	public double temperature;		// Relative score increase accepted with probability 1/e
+	public byte[] cellEnabled;		// Current design
+	public float[] cellHeat;		// Heat field to warm-start the next simulation
+	public double score;
+	public int candidateCount;		// Candidates simulated at this temperature
+	public int acceptedCount;		// Candidates accepted at this temperature
+	public int swapCount;			// Swaps accepted with the next hotter replica
+	
+	public Replica(double temperature, byte[] cellEnabled, float[] cellHeat, double score) {
+		this.temperature = temperature;
+		this.cellEnabled = cellEnabled;
+		this.cellHeat = cellHeat;
+		this.score = score;
+	}
+}
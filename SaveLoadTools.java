@@ -1,12 +1,26 @@
 package heatsinkDesign;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
 
 // This class exports the heat sink design as an OBJ file
 
@@ -21,9 +35,9 @@ public class SaveLoadTools {
 		
 		// Count the number of enabled cells
 		int cellCount = 0;
-		for (int x = 0; x < HeatsinkMain.cellsWide; x++) {
-			for (int y = 0; y < HeatsinkMain.cellsWide; y++) {
-				for (int z = 0; z < HeatsinkMain.cellsWide; z++) {
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
 					final int idx = HeatsinkMain.idx(x, y, z);
 					
 					// If this cell is not enabled, then don't render it
@@ -37,9 +51,9 @@ public class SaveLoadTools {
 		final float[] vertices = new float[cellCount * 18 * 6];
 		
 		int i = 0;
-		for (int x = 0; x < HeatsinkMain.cellsWide; x++) {
-			for (int y = 0; y < HeatsinkMain.cellsWide; y++) {
-				for (int z = 0; z < HeatsinkMain.cellsWide; z++) {
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
 					final int idx = HeatsinkMain.idx(x, y, z);
 					
 					// If this cell is not enabled, then don't render it
@@ -199,9 +213,14 @@ public class SaveLoadTools {
 			DataInputStream os = new DataInputStream(new FileInputStream(
 					"src/heatsinkDesign/" + name));
 			
-			final int cellsWide = os.readInt();
-			if (HeatsinkMain.cellsWide != cellsWide) {
-				System.err.println("Cells wide doesn't match: " + HeatsinkMain.cellsWide + ", " + cellsWide);
+			// Older files only stored one size, for a cube
+			final int firstInt = os.readInt();
+			final int cellsX = firstInt == designMagic ? os.readInt() : firstInt;
+			final int cellsY = firstInt == designMagic ? os.readInt() : firstInt;
+			final int cellsZ = firstInt == designMagic ? os.readInt() : firstInt;
+			if (HeatsinkMain.cellsX != cellsX || HeatsinkMain.cellsY != cellsY || HeatsinkMain.cellsZ != cellsZ) {
+				System.err.println("Domain size doesn't match: " + HeatsinkMain.cellsX + "x" + HeatsinkMain.cellsY +
+						"x" + HeatsinkMain.cellsZ + ", " + cellsX + "x" + cellsY + "x" + cellsZ);
 				System.exit(1);
 			}
 			final int airPadding = os.readInt();
@@ -210,21 +229,9 @@ public class SaveLoadTools {
 				System.exit(1);
 			}
 			
-			for (int x = 0; x < HeatsinkMain.cellsWide; x++) {
-				for (int y = 0; y < HeatsinkMain.cellsWide; y++) {
-					for (int z = 0; z < HeatsinkMain.cellsWide; z += 8) {
-						byte data = os.readByte();
-						HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+0)] = (byte)((data >> 0) & 1);
-						HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+1)] = (byte)((data >> 1) & 1);
-						HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+2)] = (byte)((data >> 2) & 1);
-						HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+3)] = (byte)((data >> 3) & 1);
-						HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+4)] = (byte)((data >> 4) & 1);
-						HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+5)] = (byte)((data >> 5) & 1);
-						HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+6)] = (byte)((data >> 6) & 1);
-						HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+7)] = (byte)((data >> 7) & 1);
-					}
-				}
-			}
+			final byte[] packed = new byte[getPackedLength()];
+			os.readFully(packed);
+			unpackDesign(packed, HeatsinkMain.cellEnabled);
 			
 			os.close();
 		} catch (Exception e) {
@@ -236,42 +243,284 @@ public class SaveLoadTools {
 	
 	static void saveCurrentHeatsinkAsBinary() {
 		System.out.println("Saving heat sink binary data...");
-		
-		// Make sure the simulation width is divisible by 8
-		int cleverTrick = HeatsinkMain.cellsWide;
-		if (cleverTrick % 8 != 0) { 
-			System.err.println("Simulation space must be divisible by 8");
-			return;
-		}
-		
+		saveDesign("HeatSinkData.txt", HeatsinkMain.cellEnabled);
+		System.out.println("Saved heat sink data");
+	}
+	
+	// Save a design in the packed format, with the size of the domain it was designed in
+	static void saveDesign(String name, byte[] cells) {
 		try {
 			DataOutputStream os = new DataOutputStream(new FileOutputStream(
-					"src/heatsinkDesign/HeatSinkData.txt"));
+					"src/heatsinkDesign/" + name));
 			
-			os.writeInt(HeatsinkMain.cellsWide);
+			os.writeInt(designMagic);
+			os.writeInt(HeatsinkMain.cellsX);
+			os.writeInt(HeatsinkMain.cellsY);
+			os.writeInt(HeatsinkMain.cellsZ);
 			os.writeInt(HeatsinkMain.airPadding);
 			
-			for (int x = 0; x < HeatsinkMain.cellsWide; x++) {
-				for (int y = 0; y < HeatsinkMain.cellsWide; y++) {
-					for (int z = 0; z < HeatsinkMain.cellsWide; z += 8) {
-						byte data = (byte)(HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z)] |
-								(HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+1)] << 1) |
-								(HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+2)] << 2) |
-								(HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+3)] << 3) |
-								(HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+4)] << 4) |
-								(HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+5)] << 5) |
-								(HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+6)] << 6) |
-								(HeatsinkMain.cellEnabled[HeatsinkMain.idx(x, y, z+7)] << 7));
-						
-						os.writeByte(data);
+			os.write(packDesign(cells));
+			
+			os.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	// Load a design saved by saveDesign() at any resolution, without unpacking it.
+	// The size it was designed at is stored in size as {cellsX, cellsY, cellsZ, airPadding}.
+	// Returns null if the file can't be read.
+	static byte[] loadPackedDesign(String name, int[] size) {
+		try {
+			DataInputStream os = new DataInputStream(new FileInputStream(
+					"src/heatsinkDesign/" + name));
+			if (os.readInt() != designMagic) {
+				System.err.println("Not a design file with its size: " + name);
+				os.close();
+				return null;
+			}
+			for (int i = 0; i < 4; i++) {
+				size[i] = os.readInt();
+			}
+			final byte[] packed = new byte[(size[0] * size[1] * size[2] + 7) / 8];
+			os.readFully(packed);
+			os.close();
+			return packed;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	// Pack a design into one bit per cell, in x, y, z order (lowest bit first), whatever the memory layout.
+	// When the z size is divisible by 8, this is the same as the old format of 8 cells along z per byte.
+	static byte[] packDesign(byte[] cells) {
+		final byte[] packed = new byte[getPackedLength()];
+		int i = 0;
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+					packed[i >> 3] |= cells[HeatsinkMain.idx(x, y, z)] << (i & 7);
+					i++;
+				}
+			}
+		}
+		return packed;
+	}
+	
+	// Unpack a design that was packed with packDesign()
+	static void unpackDesign(byte[] packed, byte[] cells) {
+		int i = 0;
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+					cells[HeatsinkMain.idx(x, y, z)] = (byte)((packed[i >> 3] >> (i & 7)) & 1);
+					i++;
+				}
+			}
+		}
+	}
+	
+	static int getPackedLength() {
+		return (HeatsinkMain.cellsX * HeatsinkMain.cellsY * HeatsinkMain.cellsZ + 7) / 8;
+	}
+	
+	// Copy a heat field into x, y, z order, so that saved files don't depend on the memory layout
+	private static float[] toFileOrder(float[] heat) {
+		if (!HeatsinkMain.useBrickedLayout) {
+			return heat;
+		}
+		final float[] ordered = new float[HeatsinkMain.cellsX * HeatsinkMain.cellsY * HeatsinkMain.cellsZ];
+		int i = 0;
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+					ordered[i++] = heat[HeatsinkMain.idx(x, y, z)];
+				}
+			}
+		}
+		return ordered;
+	}
+	
+	// Inverse of toFileOrder()
+	private static float[] fromFileOrder(float[] ordered) {
+		if (!HeatsinkMain.useBrickedLayout) {
+			return ordered;
+		}
+		final float[] heat = new float[HeatsinkMain.numCells];
+		int i = 0;
+		for (int x = 0; x < HeatsinkMain.cellsX; x++) {
+			for (int y = 0; y < HeatsinkMain.cellsY; y++) {
+				for (int z = 0; z < HeatsinkMain.cellsZ; z++) {
+					heat[HeatsinkMain.idx(x, y, z)] = ordered[i++];
+				}
+			}
+		}
+		return heat;
+	}
+	
+	private static final int designMagic = 0x48534453; // "HSDS", larger than any old cube size
+	
+	// Serialize the state of a random number generator so that it can be resumed exactly
+	static byte[] serializeRandom(Random random) {
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final ObjectOutputStream os = new ObjectOutputStream(bytes);
+			os.writeObject(random);
+			os.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	static Random deserializeRandom(byte[] data) {
+		try {
+			final ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(data));
+			final Random random = (Random)is.readObject();
+			is.close();
+			return random;
+		} catch (IOException | ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	// Write a checkpoint on a background thread.
+	// The arrays in the checkpoint must already be copies, since the optimizer keeps running.
+	// If the previous checkpoint is still being written, then this one is skipped.
+	static void saveCheckpointInBackground(final Checkpoint checkpoint, final String name) {
+		synchronized (SaveLoadTools.class) {
+			if (isCheckpointWriting) {
+				return;
+			}
+			isCheckpointWriting = true;
+		}
+		
+		final Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					saveCheckpoint(checkpoint, name);
+				} finally {
+					synchronized (SaveLoadTools.class) {
+						isCheckpointWriting = false;
 					}
 				}
 			}
+		});
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+	
+	private static boolean isCheckpointWriting = false;
+	
+	// Write a checkpoint to a temporary file, then atomically move it over the old one,
+	//   so that a crash while saving never leaves a half-written checkpoint behind.
+	static void saveCheckpoint(Checkpoint checkpoint, String name) {
+		final Path path = Paths.get("src/heatsinkDesign/" + name);
+		final Path tempPath = Paths.get("src/heatsinkDesign/" + name + ".tmp");
+		
+		final byte[] packed = packDesign(checkpoint.cellEnabled);
+		final int heatOffset = getCheckpointHeatOffset(checkpoint.randomState.length, packed.length);
+		
+		try {
+			final FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			
+			final ByteBuffer header = ByteBuffer.allocate(heatOffset);
+			header.putInt(checkpointMagic);
+			header.putInt(checkpointVersion);
+			header.putInt(HeatsinkMain.cellsX);
+			header.putInt(HeatsinkMain.cellsY);
+			header.putInt(HeatsinkMain.cellsZ);
+			header.putInt(HeatsinkMain.airPadding);
+			header.putInt(checkpoint.iteration);
+			header.putDouble(checkpoint.previousScore);
+			header.putDouble(checkpoint.initialScore);
+			header.putLong(checkpoint.elapsedMillis);
+			header.putInt(checkpoint.randomState.length);
+			header.put(checkpoint.randomState);
+			header.putInt(packed.length);
+			header.put(packed);
+			header.rewind();
+			
+			final float[] orderedHeat = toFileOrder(checkpoint.cellHeat);
+			final ByteBuffer heat = ByteBuffer.allocate(orderedHeat.length * 4);
+			heat.asFloatBuffer().put(orderedHeat);
+			
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			while (heat.hasRemaining()) {
+				channel.write(heat);
+			}
+			channel.force(true);
+			channel.close();
 			
-			os.close();
+			Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		System.out.println("Saved heat sink data");
 	}
+	
+	// Load a checkpoint by memory-mapping it.  Returns null if there is no usable checkpoint.
+	static Checkpoint loadCheckpoint(String name) {
+		final Path path = Paths.get("src/heatsinkDesign/" + name);
+		if (!Files.exists(path)) {
+			return null;
+		}
+		
+		try {
+			final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			final MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			channel.close();
+			
+			if (data.getInt() != checkpointMagic || data.getInt() != checkpointVersion) {
+				System.err.println("Not a checkpoint file of this version: " + name);
+				return null;
+			}
+			final int cellsX = data.getInt();
+			final int cellsY = data.getInt();
+			final int cellsZ = data.getInt();
+			final int airPadding = data.getInt();
+			if (HeatsinkMain.cellsX != cellsX || HeatsinkMain.cellsY != cellsY || HeatsinkMain.cellsZ != cellsZ ||
+					HeatsinkMain.airPadding != airPadding) {
+				System.err.println("Checkpoint size doesn't match: " + HeatsinkMain.cellsX + "x" + HeatsinkMain.cellsY +
+						"x" + HeatsinkMain.cellsZ + ", " + cellsX + "x" + cellsY + "x" + cellsZ);
+				return null;
+			}
+			
+			final int iteration = data.getInt();
+			final double previousScore = data.getDouble();
+			final double initialScore = data.getDouble();
+			final long elapsedMillis = data.getLong();
+			final byte[] randomState = new byte[data.getInt()];
+			data.get(randomState);
+			final byte[] packed = new byte[data.getInt()];
+			data.get(packed);
+			
+			final byte[] cells = new byte[HeatsinkMain.numCells];
+			unpackDesign(packed, cells);
+			
+			// Bulk copy the heat field directly out of the mapped file
+			final float[] heat = new float[HeatsinkMain.cellsX * HeatsinkMain.cellsY * HeatsinkMain.cellsZ];
+			data.position(getCheckpointHeatOffset(randomState.length, packed.length));
+			data.slice().asFloatBuffer().get(heat);
+			
+			return new Checkpoint(iteration, previousScore, initialScore, elapsedMillis,
+					randomState, cells, fromFileOrder(heat));
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	// The heat field starts after the header, aligned to 4 bytes
+	private static int getCheckpointHeatOffset(int randomStateLength, int packedLength) {
+		final int headerLength = 4 * 7 + 8 * 3 + 4 + randomStateLength + 4 + packedLength;
+		return (headerLength + 3) / 4 * 4;
+	}
+	
+	private static final int checkpointMagic = 0x48534350; // "HSCP"
+	private static final int checkpointVersion = 2;
 }
@@ -0,0 +1,123 @@
+package heatsinkDesign;
+
+import java.util.HashSet;
+import java.util.Random;
+
+// This class remembers recently rejected mutations, so that they aren't simulated again right away.
+// A mutation is identified by the cells it changes and their new states.  Each cell is first mapped
+//    to its image in the part of the design that is reflected to the rest (x < cellsX/2, z <= x),
+//    so a mutation and its reflections share an ID, whichever of them the operators produced.
+// The IDs of the last tenure rejections are kept in a ring buffer, with a hash set of the same IDs
+//    for lookups.  Mutations that are on the list are made again, up to maxRetries times.
+// The pipeline looks up candidates on its own thread, so the list is synchronized.
+
+public class TabuList {
+	static private final int tenure = 200;		// Rejected mutations remembered
+	static private final int maxRetries = 20;	// Mutations made before simulating one that is on the list anyway
+	
+	static private final long[] ring = new long[tenure];
+	static private final HashSet<Long> set = new HashSet<Long>();
+	static private int next = 0;				// Position in the ring of the next rejection
+	
+	// Statistics
+	static private long lookupCount = 0;
+	static private long hitCount = 0;			// Mutations that were on the list and made again
+	static private long giveUpCount = 0;		// Candidates simulated after maxRetries mutations on the list
+	static private long addedCount = 0;			// Rejections remembered since the last reset
+	
+	static synchronized void reset() {
+		set.clear();
+		next = 0;
+		addedCount = 0;
+	}
+	
+	static synchronized void resetStatistics() {
+		lookupCount = 0;
+		hitCount = 0;
+		giveUpCount = 0;
+	}
+	
+	// Mutate the design with HeatsinkMain.makeMutation() until the mutation isn't on the list or
+	//   excludedId (the candidate being simulated, or 0 for none)
+	static void mutate(byte[] cells, Random random, boolean[][][] table, long excludedId) {
+		final byte[] base = cells.clone();
+		for (int i = 0; i < maxRetries; i++) {
+			HeatsinkMain.makeMutation(cells, random, table);
+			final long id = getMutationId(base, cells);
+			if (id != excludedId && !contains(id)) {
+				return;
+			}
+			System.arraycopy(base, 0, cells, 0, HeatsinkMain.numCells);
+		}
+		HeatsinkMain.makeMutation(cells, random, table);
+		synchronized (TabuList.class) {
+			giveUpCount++;
+		}
+	}
+	
+	// Remember a rejected mutation, forgetting the oldest one once tenure are remembered
+	static synchronized void add(long id) {
+		if (id == 0 || set.contains(id)) {
+			return;
+		}
+		if (addedCount >= tenure) {
+			set.remove(ring[next]);
+		}
+		ring[next] = id;
+		set.add(id);
+		next = (next + 1) % tenure;
+		addedCount++;
+	}
+	
+	static synchronized boolean contains(long id) {
+		lookupCount++;
+		if (id != 0 && set.contains(id)) {
+			hitCount++;
+			return true;
+		}
+		return false;
+	}
+	
+	// The ID of the mutation from base to candidate, or 0 if they are the same.
+	// The ID is a sum over the changed cells, so it doesn't depend on the order they are visited in,
+	//   and reflected cells add the same term.
+	static long getMutationId(byte[] base, byte[] candidate) {
+		final int cellsX = HeatsinkMain.cellsX;
+		final int cellsY = HeatsinkMain.cellsY;
+		final int cellsZ = HeatsinkMain.cellsZ;
+		long id = 0;
+		for (int x = 0; x < cellsX; x++) {
+			for (int y = 0; y < cellsY; y++) {
+				for (int z = 0; z < cellsZ; z++) {
+					final int idx = HeatsinkMain.idx(x, y, z);
+					if (base[idx] == candidate[idx]) {
+						continue;
+					}
+					int x2 = Math.min(x, cellsX-1 - x);
+					int z2 = Math.min(z, cellsZ-1 - z);
+					if (HeatsinkMain.isSquareFootprint && z2 > x2) {
+						final int temp = x2;
+						x2 = z2;
+						z2 = temp;
+					}
+					id += mix(((long)(x2 * cellsY + y) * cellsZ + z2) << 1 | candidate[idx]);
+				}
+			}
+		}
+		return id;
+	}
+	
+	static synchronized void printStatistics() {
+		HeatsinkMain.print(String.format("Tabu list: %d of %d mutations were on the list, %d candidates simulated " +
+				"anyway, %d rejections remembered (%d at most)", hitCount, lookupCount, giveUpCount,
+				Math.min(addedCount, tenure), tenure));
+	}
+	
+	// Scramble the bits of a cell's code (the SplitMix64 finalizer), so that sums of different cells
+	//   rarely collide
+	private static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+		value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+		return value ^ (value >>> 31);
+	}
+}
@@ -2,31 +2,46 @@
 #define conductivity 0.1666666f
 
 // Convert an xyz coordinate to an index in the array
-__device__ __forceinline__ int toIndex(int x, int y, int z, int cellsWide) {
-	//return x * cellsWide * cellsWide + y * cellsWide + z;
-	return (x * cellsWide + y) * cellsWide + z;
+// (same layouts as HeatsinkMain.linearIdx and HeatsinkMain.brickedIdx)
+__device__ __forceinline__ int toIndex(int x, int y, int z, int cellsY, int cellsZ, char brickedLayout) {
+	if (brickedLayout) {
+		const int brick = ((x >> 2) * ((cellsY + 3) >> 2) + (y >> 2)) * ((cellsZ + 3) >> 2) + (z >> 2);
+		return brick << 6 | (x & 3) << 4 | (y & 3) << 2 | (z & 3);
+	}
+	return (x * cellsY + y) * cellsZ + z;
 }
 
 // Compute one step of thermal diffusion in 3D
 extern "C"
-__global__ void thermalDiffusionStep(const int cellsWide,
+__global__ void thermalDiffusionStep(const int cellsX,
 		const int airPadding, const char shouldComputeAir, const char shouldComputeBoundary,
 		const char* cellEnabled, float* cellHeat, float* cellDeltaHeat, const char copyMode,
-		const float heatSourceHeatPerCell) {
+		const float heatSourceHeatPerCell, float* cellPreviousStep, float* cellCycleStart,
+		const float momentum, const char isEndOfCycle, const int margin, const char farFieldBoundary,
+		const int cellsY, const int cellsZ, const char brickedLayout) {
 	
-    const int x = blockIdx.x * blockDim.x + threadIdx.x;
+	// Only the cells inside the margin are simulated (the bottom is never cut off)
+    const int x = blockIdx.x * blockDim.x + threadIdx.x + margin;
 	const int y = blockIdx.y * blockDim.y + threadIdx.y;
-	const int z = blockIdx.z * blockDim.z + threadIdx.z;
+	const int z = blockIdx.z * blockDim.z + threadIdx.z + margin;
 	
-	if (x >= cellsWide || y >= cellsWide || z >= cellsWide) {
+	if (x >= cellsX - margin || y >= cellsY - margin || z >= cellsZ - margin) {
 		return;
 	}
 	
-	const int idx = toIndex(x, y, z, cellsWide);
+	const int idx = toIndex(x, y, z, cellsY, cellsZ, brickedLayout);
 	
 	// If we only want to copy the results from the previous iteration
 	if (copyMode) {
 		cellHeat[idx] += cellDeltaHeat[idx];
+		
+		// At the end of each cycle, keep moving in the direction of the previous cycle
+		if (isEndOfCycle) {
+			const float heat = cellHeat[idx] + momentum * cellPreviousStep[idx];
+			cellPreviousStep[idx] = heat - cellCycleStart[idx];
+			cellCycleStart[idx] = heat;
+			cellHeat[idx] = heat;
+		}
 	} else {
 		// Array to represent the 6 adjacent cells
 		const char axes[] = {
@@ -38,8 +53,8 @@ __global__ void thermalDiffusionStep(const int cellsWide,
 				0, 0, -1};
 		
 		// If this cell gets heat directly from the artificial heat source
-		if (y == 0 && x > airPadding*1.3f-1 && x < cellsWide-airPadding*1.3f &&
-					z > airPadding*1.3f-1 && z < cellsWide-airPadding*1.3f) {
+		if (y == 0 && x > airPadding*1.3f-1 && x < cellsX-airPadding*1.3f &&
+					z > airPadding*1.3f-1 && z < cellsZ-airPadding*1.3f) {
 			cellDeltaHeat[idx] = heatSourceHeatPerCell;
 		} else {
 			cellDeltaHeat[idx] = 0;
@@ -48,11 +63,11 @@ __global__ void thermalDiffusionStep(const int cellsWide,
 		// Iterate over the adjacent cells
 		for (int i = 0; i < 6 * 3; i += 3) {
 			// Check if this cell is in bounds
-			if (x + axes[i+0] >= 0 && x + axes[i+0] < cellsWide &&
-					y + axes[i+1] >= 0 && y + axes[i+1] < cellsWide &&
-					z + axes[i+2] >= 0 && z + axes[i+2] < cellsWide) {
+			if (x + axes[i+0] >= margin && x + axes[i+0] < cellsX - margin &&
+					y + axes[i+1] >= 0 && y + axes[i+1] < cellsY - margin &&
+					z + axes[i+2] >= margin && z + axes[i+2] < cellsZ - margin) {
 				
-				const int idx2 = toIndex(x + axes[i+0], y + axes[i+1], z + axes[i+2], cellsWide);
+				const int idx2 = toIndex(x + axes[i+0], y + axes[i+1], z + axes[i+2], cellsY, cellsZ, brickedLayout);
 				
 				if (cellEnabled[idx] != cellEnabled[idx2]) {
 					// Air to metal boundary (exclude the heat source area)
@@ -68,11 +83,19 @@ __global__ void thermalDiffusionStep(const int cellsWide,
 				
 				cellDeltaHeat[idx] += (cellHeat[idx2] - cellHeat[idx]) * conductivity;
 			} else if (shouldComputeAir && !(y == 0 &&
-						x > airPadding*1.3f-1 && x < cellsWide-airPadding*1.3f &&
-						z > airPadding*1.3f-1 && z < cellsWide-airPadding*1.3f)) {
+						x > airPadding*1.3f-1 && x < cellsX-airPadding*1.3f &&
+						z > airPadding*1.3f-1 && z < cellsZ-airPadding*1.3f)) {
 				// This cell is not in bounds, so apply border conditions.
 				// The border heat is assumed to be ambient temperature air (0 degrees).
-				cellDeltaHeat[idx] -= cellHeat[idx] * conductivity;
+				// The far-field border lets heat leave as if the air continued (see HeatsinkMain).
+				float farFieldFactor = 1;
+				if (farFieldBoundary && y + axes[i+1] >= 0) {
+					const float dx = x - (cellsX - 1) * 0.5f;
+					const float dz = z - (cellsZ - 1) * 0.5f;
+					const float r = sqrtf(dx*dx + y*y + dz*dz);
+					farFieldFactor = (2*r + 1) / ((r + 1) * (r + 1));
+				}
+				cellDeltaHeat[idx] -= cellHeat[idx] * conductivity * farFieldFactor;
 			}
 		}
 	}
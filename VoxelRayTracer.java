@@ -28,7 +28,7 @@ public class VoxelRayTracer {
 	private static float camMoveSpeed = 0.15f;
 	private static Vector3 camVelocity = new Vector3();
 	private static Vector3 camFocus = new Vector3(
-			HeatsinkMain.cellsWide/2d, HeatsinkMain.cellsWide/5d, HeatsinkMain.cellsWide/2d);
+			HeatsinkMain.cellsX/2d, HeatsinkMain.cellsY/5d, HeatsinkMain.cellsZ/2d);
 	private static long lastRenderTime = System.currentTimeMillis();
 	private static double fps = 30;
 	private static Vector3 lightVec = new Vector3(-0.4, -0.6, 0.3).normalized();
@@ -458,19 +458,19 @@ public class VoxelRayTracer {
 		final double minX = HeatsinkMain.airPadding;
 		final double minY = 0;
 		final double minZ = HeatsinkMain.airPadding;
-		final double maxX = HeatsinkMain.cellsWide - HeatsinkMain.airPadding + e*2;
-		final double maxY = HeatsinkMain.cellsWide - HeatsinkMain.airPadding + e*2;
-		final double maxZ = HeatsinkMain.cellsWide - HeatsinkMain.airPadding + e*2;
+		final double maxX = HeatsinkMain.cellsX - HeatsinkMain.airPadding + e*2;
+		final double maxY = HeatsinkMain.cellsY - HeatsinkMain.airPadding + e*2;
+		final double maxZ = HeatsinkMain.cellsZ - HeatsinkMain.airPadding + e*2;
 		
 		Vector3 closestHit = null;
 		Vector3 closestNorm = null;
 		double minSquareDist = 9999999;
 		
 		Vector3 norm = new Vector3(rayVec.x > 0 ? 1 : -1, 0, 0);
-		for (int x = HeatsinkMain.airPadding; x <= HeatsinkMain.cellsWide - HeatsinkMain.airPadding; x++) {
+		for (int x = HeatsinkMain.airPadding; x <= HeatsinkMain.cellsX - HeatsinkMain.airPadding; x++) {
 			
 			// Compute the intersection between the ray and the plane
-			final double newX = rayVec.x > 0 ? x : HeatsinkMain.cellsWide - x;
+			final double newX = rayVec.x > 0 ? x : HeatsinkMain.cellsX - x;
 			final double multiplier = (newX - rayOrigin.x) / rayVec.x;
 			if (multiplier < 0) { // If this hit is not going in the right direction
 				continue;
@@ -506,10 +506,10 @@ public class VoxelRayTracer {
 		}
 		
 		norm = new Vector3(0, rayVec.y > 0 ? 1 : -1, 0);
-		for (int y = 0; y <= HeatsinkMain.cellsWide - HeatsinkMain.airPadding; y++) {
+		for (int y = 0; y <= HeatsinkMain.cellsY - HeatsinkMain.airPadding; y++) {
 			
 			// Compute the intersection between the ray and the plane
-			final double newY = rayVec.y > 0 ? y : HeatsinkMain.cellsWide - HeatsinkMain.airPadding - y;
+			final double newY = rayVec.y > 0 ? y : HeatsinkMain.cellsY - HeatsinkMain.airPadding - y;
 			final double multiplier = (newY - rayOrigin.y) / rayVec.y;
 			if (multiplier < 0) { // If this hit is not going in the right direction
 				continue;
@@ -545,10 +545,10 @@ public class VoxelRayTracer {
 		}
 		
 		norm = new Vector3(0, 0, rayVec.z > 0 ? 1 : -1);
-		for (int z = HeatsinkMain.airPadding; z <= HeatsinkMain.cellsWide - HeatsinkMain.airPadding; z++) {
+		for (int z = HeatsinkMain.airPadding; z <= HeatsinkMain.cellsZ - HeatsinkMain.airPadding; z++) {
 			
 			// Compute the intersection between the ray and the plane
-			final double newZ = rayVec.z > 0 ? z : HeatsinkMain.cellsWide - z;
+			final double newZ = rayVec.z > 0 ? z : HeatsinkMain.cellsZ - z;
 			final double multiplier = (newZ - rayOrigin.z) / rayVec.z;
 			if (multiplier < 0) { // If this hit is not going in the right direction
 				continue;